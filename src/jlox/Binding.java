@@ -0,0 +1,28 @@
+package jlox;
+
+import java.io.Serializable;
+
+// Where Resolver found a variable: a slot in the current function's frame, an upvalue of the running closure, or a
+// global cell.
+class Binding implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  static final int UNSPECIALIZED = 0;
+  static final int CONSTANT = 1;
+  static final int LOCAL = 2;
+  static final int LOCAL_CELL = 3;
+  static final int UPVALUE = 4;
+  static final int GLOBAL = 5;
+
+  int slot = -1;
+  int upvalue = -1;
+  // the slot holds a Cell because some closure captures it
+  boolean isCaptured = false;
+  // value of a literal constant, substituted for the variable read
+  boolean isConstant = false;
+  Object constant;
+  transient Cell cell;
+  int cellVersion = -1;
+  // which of the above applies, fixed by Interpreter on first execution, once Resolver has finished patching
+  int access = UNSPECIALIZED;
+}
@@ -0,0 +1,10 @@
+package jlox;
+
+// A mutable binding shared by everything that can see it: global snapshots, or a frame and the closures capturing it.
+class Cell {
+  Object value;
+
+  Cell(Object value) {
+    this.value = value;
+  }
+}
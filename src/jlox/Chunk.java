@@ -0,0 +1,65 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Bytecode of one function: instruction words, the token each instruction reports errors at, and a constant pool.
+class Chunk {
+  // A global variable access site, caching the cell it resolved to in the snapshot with the given version.
+  static class Global {
+    final Token name;
+    Cell cell;
+    int version = -1;
+
+    Global(Token name) {
+      this.name = name;
+    }
+  }
+
+  int[] code = new int[32];
+  Token[] tokens = new Token[32];
+  int count = 0;
+  Object[] constants;
+  // deepest the operand stack gets above the frame's slots
+  int maxStack = 0;
+
+  private final List<Object> constantList = new ArrayList<>();
+  private final Map<Object, Integer> constantIndices = new HashMap<>();
+
+  int write(int word, Token token) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      tokens = Arrays.copyOf(tokens, count * 2);
+    }
+
+    code[count] = word;
+    tokens[count] = token;
+    return count++;
+  }
+
+  // Numbers and strings are shared within a chunk; other constants are per site.
+  int addConstant(Object value) {
+    boolean isShared = value instanceof Double || value instanceof String;
+
+    if (isShared && constantIndices.containsKey(value)) {
+      return constantIndices.get(value);
+    }
+
+    constantList.add(value);
+
+    if (isShared) {
+      constantIndices.put(value, constantList.size() - 1);
+    }
+
+    return constantList.size() - 1;
+  }
+
+  void finish() {
+    constants = constantList.toArray();
+    code = Arrays.copyOf(code, count);
+    tokens = Arrays.copyOf(tokens, count);
+  }
+}
@@ -0,0 +1,298 @@
+package jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes the class files JvmCompiler loads: a few methods over a constant pool, with no fields, interfaces or
+// attributes besides Code. Version 49 class files are verified by type inference, so no stack map frames are needed.
+final class ClassWriter {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  private static final int VERSION = 49;
+
+  private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+  private final DataOutputStream pool = new DataOutputStream(poolBytes);
+  private final Map<String, Integer> poolIndices = new HashMap<>();
+  private int poolCount = 1;
+  private final int thisClass;
+  private final int superClass;
+  private final List<Code> methods = new ArrayList<>();
+
+  ClassWriter(String name, String superName) {
+    this.thisClass = classRef(name);
+    this.superClass = classRef(superName);
+  }
+
+  // Bytecode of one method. Branch offsets are 16 bits, so callers check the length before loading the class.
+  final class Code {
+    private final int access;
+    private final int name;
+    private final int descriptor;
+    private byte[] code = new byte[256];
+    private int length = 0;
+    private int depth = 0;
+    private int maxStack = 0;
+    int maxLocals;
+
+    private Code(int access, String name, String descriptor, int maxLocals) {
+      this.access = access;
+      this.name = utf8(name);
+      this.descriptor = utf8(descriptor);
+      this.maxLocals = maxLocals;
+    }
+
+    int length() {
+      return length;
+    }
+
+    void op(int opcode, int stackEffect) {
+      u1(opcode);
+      adjust(stackEffect);
+    }
+
+    void op1(int opcode, int operand, int stackEffect) {
+      u1(opcode);
+      u1(operand);
+      adjust(stackEffect);
+    }
+
+    void op2(int opcode, int operand, int stackEffect) {
+      u1(opcode);
+      u2(operand);
+      adjust(stackEffect);
+    }
+
+    void invokeInterface(int method, int argumentSlots, int stackEffect) {
+      u1(Opcodes.INVOKEINTERFACE);
+      u2(method);
+      u1(argumentSlots + 1);
+      u1(0);
+      adjust(stackEffect);
+    }
+
+    // Returns the offset of a forward branch, to be patched once its target is known.
+    int jump(int opcode, int stackEffect) {
+      int at = length;
+      op2(opcode, 0, stackEffect);
+      return at;
+    }
+
+    void patch(int jump) {
+      patch(jump, length);
+    }
+
+    void patch(int jump, int target) {
+      int offset = target - jump;
+      code[jump + 1] = (byte) (offset >> 8);
+      code[jump + 2] = (byte) offset;
+    }
+
+    void jumpTo(int opcode, int target, int stackEffect) {
+      op2(opcode, (target - length) & 0xffff, stackEffect);
+    }
+
+    private void adjust(int stackEffect) {
+      depth += stackEffect;
+      maxStack = Math.max(maxStack, depth);
+    }
+
+    private void u1(int value) {
+      if (length == code.length) {
+        code = Arrays.copyOf(code, length * 2);
+      }
+      code[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+  }
+
+  Code method(int access, String name, String descriptor, int maxLocals) {
+    Code method = new Code(access, name, descriptor, maxLocals);
+    methods.add(method);
+    return method;
+  }
+
+  int utf8(String value) {
+    return entry("Utf8:" + value, () -> {
+      pool.writeByte(1);
+      pool.writeUTF(value);
+    }, 1);
+  }
+
+  int classRef(String internalName) {
+    int name = utf8(internalName);
+    return entry("Class:" + internalName, () -> {
+      pool.writeByte(7);
+      pool.writeShort(name);
+    }, 1);
+  }
+
+  int string(String value) {
+    int utf8 = utf8(value);
+    return entry("String:" + value, () -> {
+      pool.writeByte(8);
+      pool.writeShort(utf8);
+    }, 1);
+  }
+
+  int doubleConstant(double value) {
+    long bits = Double.doubleToRawLongBits(value);
+    return entry("Double:" + bits, () -> {
+      pool.writeByte(6);
+      pool.writeLong(bits);
+    }, 2);
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(9, owner, name, descriptor);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return memberRef(10, owner, name, descriptor);
+  }
+
+  int interfaceMethodRef(String owner, String name, String descriptor) {
+    return memberRef(11, owner, name, descriptor);
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    int ownerClass = classRef(owner);
+    int nameUtf8 = utf8(name);
+    int descriptorUtf8 = utf8(descriptor);
+    int nameAndType = entry("NameAndType:" + name + ":" + descriptor, () -> {
+      pool.writeByte(12);
+      pool.writeShort(nameUtf8);
+      pool.writeShort(descriptorUtf8);
+    }, 1);
+
+    return entry(tag + ":" + owner + "." + name + ":" + descriptor, () -> {
+      pool.writeByte(tag);
+      pool.writeShort(ownerClass);
+      pool.writeShort(nameAndType);
+    }, 1);
+  }
+
+  private interface PoolWrite {
+    void write() throws IOException;
+  }
+
+  private int entry(String key, PoolWrite write, int size) {
+    Integer index = poolIndices.get(key);
+
+    if (index != null)
+      return index;
+
+    try {
+      write.write();
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+
+    poolIndices.put(key, poolCount);
+    poolCount += size;
+    return poolCount - size;
+  }
+
+  byte[] toByteArray() {
+    int codeAttribute = utf8("Code");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      out.write(poolBytes.toByteArray());
+      out.writeShort(ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0); // interfaces
+      out.writeShort(0); // fields
+      out.writeShort(methods.size());
+
+      for (Code method : methods) {
+        out.writeShort(method.access);
+        out.writeShort(method.name);
+        out.writeShort(method.descriptor);
+        out.writeShort(1); // attributes
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + method.length);
+        out.writeShort(method.maxStack);
+        out.writeShort(method.maxLocals);
+        out.writeInt(method.length);
+        out.write(method.code, 0, method.length);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+      }
+
+      out.writeShort(0); // attributes
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  // The JVM instructions JvmCompiler emits.
+  static final class Opcodes {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP2_X1 = 0x5d;
+    static final int DUP2_X2 = 0x5e;
+    static final int SWAP = 0x5f;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+
+    private Opcodes() {
+    }
+  }
+}
@@ -0,0 +1,718 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Converts resolved statements once into a tree of Java closures that run them directly. Each closure captures its
+// children, resolved slots and operator, so running the tree needs no visitor dispatch and no switch over token types.
+// The closures share the Interpreter's frames and runtime objects, and hot functions and loops still move on to
+// JvmCompiler.
+class ClosureCompiler implements Expr.IVisitor<ClosureCompiler.Evaluator>, Stmt.IVisitor<ClosureCompiler.Executor> {
+  interface Evaluator {
+    Object evaluate(Environment frame);
+  }
+
+  interface NumberEvaluator {
+    double evaluate(Environment frame);
+  }
+
+  interface Condition {
+    boolean test(Environment frame);
+  }
+
+  // Statements complete like they do in the Interpreter, leaving a returned value or tail call with it.
+  interface Executor {
+    Completion execute(Environment frame);
+  }
+
+  private interface Store {
+    void store(Environment frame, Object value);
+  }
+
+  private final Interpreter interpreter;
+
+  ClosureCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  Executor compile(List<Stmt> statements) {
+    return block(statements);
+  }
+
+  @Override
+  public Executor visitBlockStmt(Stmt.Block stmt) {
+    return block(stmt.statements);
+  }
+
+  @Override
+  public Executor visitClassStmt(Stmt.Class stmt) {
+    Store define = define(stmt);
+    Store initialize = initialize(stmt);
+    String name = stmt.name.lexeme;
+    int frameSize = stmt.frameSize;
+    List<Upvalue> upvalues = stmt.upvalues;
+
+    Map<Symbol, LoxField> fields = new LinkedHashMap<>();
+    Map<Symbol, Integer> slots = new HashMap<>();
+
+    stmt.fields.forEach(field -> {
+      fields.put(field.name.symbol, new LoxField(field));
+      slots.put(field.name.symbol, field.slot);
+    });
+
+    Executor fieldCode = block(new ArrayList<Stmt>(stmt.fields));
+    Map<Symbol, LoxFunction> methods = new HashMap<>();
+
+    // Methods get their real closure once they are bound to an instance frame.
+    stmt.methods.forEach(method -> {
+      LoxFunction function = new LoxFunction(method.name, method.params, method.body, method.frameSize,
+          method.upvalues, null, method.name.lexeme.equals("init"), method.visibility, block(method.body));
+
+      methods.put(method.name.symbol, function);
+      slots.put(method.name.symbol, method.slot);
+    });
+
+    return frame -> {
+      define.store(frame, null);
+      initialize.store(frame, new LoxClass(name, fields, methods, slots, frameSize, upvalues, frame, fieldCode));
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Executor visitBreakStmt(Stmt.Break stmt) {
+    return frame -> Completion.BREAK;
+  }
+
+  @Override
+  public Executor visitContinueStmt(Stmt.Continue stmt) {
+    return frame -> Completion.CONTINUE;
+  }
+
+  @Override
+  public Executor visitExpressionStmt(Stmt.Expression stmt) {
+    Evaluator expression = compile(stmt.expression);
+
+    return frame -> {
+      expression.evaluate(frame);
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Executor visitForStmt(Stmt.For stmt) {
+    Executor initializer = stmt.initializer != null ? compile(stmt.initializer) : null;
+    Condition condition = stmt.condition != null ? condition(stmt.condition) : frame -> true;
+    Executor body = compile(stmt.body);
+    Evaluator increment = stmt.increment != null ? compile(stmt.increment) : null;
+    int capturedSlot = stmt.capturedSlot;
+
+    return frame -> {
+      if (initializer != null) {
+        initializer.execute(frame);
+      }
+
+      while (condition.test(frame)) {
+        Completion completion = body.execute(frame);
+
+        if (completion == Completion.BREAK)
+          break;
+        if (completion == Completion.RETURN || completion == Completion.TAIL_CALL)
+          return completion;
+
+        // Closures created in this iteration keep its cell; the next iteration continues in a copy.
+        if (capturedSlot >= 0) {
+          frame.assignAt(capturedSlot, new Cell(((Cell) frame.getAt(capturedSlot)).value));
+        }
+
+        if (increment != null) {
+          increment.evaluate(frame);
+        }
+
+        if (++stmt.backEdges >= JvmCompiler.LOOP_THRESHOLD) {
+          stmt.compiled = Interpreter.compileLoop(stmt.compiled, frame, stmt.condition, stmt.body, stmt.increment);
+
+          if (stmt.compiled != null)
+            return interpreter.runCompiledLoop(stmt.compiled, frame);
+
+          stmt.backEdges = Integer.MIN_VALUE;
+        }
+      }
+
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Executor visitFunctionStmt(Stmt.Function stmt) {
+    Store define = define(stmt);
+    Store initialize = initialize(stmt);
+    Executor code = block(stmt.body);
+
+    return frame -> {
+      // Define the name before creating the closure so the function can refer to itself.
+      define.store(frame, null);
+      initialize.store(frame, new LoxFunction(stmt.name, stmt.params, stmt.body, stmt.frameSize, stmt.upvalues,
+          frame, false, stmt.visibility, code));
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Executor visitFunctionParameter(Stmt.FunctionParameter stmt) {
+    return null;
+  }
+
+  @Override
+  public Executor visitIfStmt(Stmt.If stmt) {
+    Condition condition = condition(stmt.condition);
+    Executor thenBranch = compile(stmt.thenBranch);
+
+    if (stmt.elseBranch == null) {
+      return frame -> condition.test(frame) ? thenBranch.execute(frame) : Completion.NORMAL;
+    }
+
+    Executor elseBranch = compile(stmt.elseBranch);
+
+    return frame -> condition.test(frame) ? thenBranch.execute(frame) : elseBranch.execute(frame);
+  }
+
+  @Override
+  public Executor visitReturnStmt(Stmt.Return stmt) {
+    Evaluator value = stmt.value == null ? frame -> null
+        : stmt.isTailCall ? call((Expr.Call) stmt.value, true) : compile(stmt.value);
+
+    return frame -> {
+      Object result = value.evaluate(frame);
+
+      // A tail call has already been left with the interpreter.
+      return result == LoxFunction.TAIL_CALL ? Completion.TAIL_CALL : interpreter.returnWith(result);
+    };
+  }
+
+  @Override
+  public Executor visitVarStmt(Stmt.Var stmt) {
+    Evaluator initializer = stmt.initializer != null ? compile(stmt.initializer) : frame -> null;
+    // Instance frames already hold a cell for every field before the initializers run.
+    Store store = stmt.isClassMember ? initialize(stmt) : define(stmt);
+
+    return frame -> {
+      store.store(frame, initializer.evaluate(frame));
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Executor visitWhileStmt(Stmt.While stmt) {
+    Condition condition = condition(stmt.condition);
+    Executor body = compile(stmt.body);
+
+    return frame -> {
+      while (condition.test(frame)) {
+        Completion completion = body.execute(frame);
+
+        if (completion == Completion.BREAK)
+          break;
+        if (completion == Completion.RETURN || completion == Completion.TAIL_CALL)
+          return completion;
+
+        if (++stmt.backEdges >= JvmCompiler.LOOP_THRESHOLD) {
+          stmt.compiled = Interpreter.compileLoop(stmt.compiled, frame, stmt.condition, stmt.body, null);
+
+          if (stmt.compiled != null)
+            return interpreter.runCompiledLoop(stmt.compiled, frame);
+
+          stmt.backEdges = Integer.MIN_VALUE;
+        }
+      }
+
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Executor visitHoistStmt(Stmt.Hoist stmt) {
+    return frame -> Completion.NORMAL;
+  }
+
+  @Override
+  public Evaluator visitAssignExpr(Expr.Assign expr) {
+    Evaluator value = compile(expr.value);
+    Binding binding = expr.binding;
+    Token name = expr.name;
+    int slot = binding.slot;
+    int upvalue = binding.upvalue;
+
+    switch (Interpreter.access(binding)) {
+      case Binding.LOCAL:
+        return frame -> {
+          Object result = value.evaluate(frame);
+          frame.assignAt(slot, result);
+          return result;
+        };
+      case Binding.LOCAL_CELL:
+        return frame -> {
+          Object result = value.evaluate(frame);
+          ((Cell) frame.getAt(slot)).value = result;
+          return result;
+        };
+      case Binding.UPVALUE:
+        return frame -> {
+          Object result = value.evaluate(frame);
+          frame.upvalues[upvalue].value = result;
+          return result;
+        };
+      default:
+        return frame -> {
+          Object result = value.evaluate(frame);
+          Interpreter.globalCell(name, binding, frame.globals).value = result;
+          return result;
+        };
+    }
+  }
+
+  @Override
+  public Evaluator visitBinaryExpr(Expr.Binary expr) {
+    // Arithmetic stays in primitive doubles down the whole numeric subtree; only its result is boxed.
+    if (expr.isNumeric) {
+      NumberEvaluator number = number(expr, expr.operator, Interpreter.NUMBER_OPERANDS);
+      return frame -> number.evaluate(frame);
+    }
+
+    Token operator = expr.operator;
+
+    switch (operator.type) {
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL: {
+        Condition condition = condition(expr);
+        return frame -> condition.test(frame);
+      }
+      default:
+        break;
+    }
+
+    Evaluator left = compile(expr.left);
+    Evaluator right = compile(expr.right);
+
+    switch (operator.type) {
+      case PLUS:
+        return frame -> CompiledFunction.add(left.evaluate(frame), right.evaluate(frame), operator);
+      case BANG_EQUAL:
+        return frame -> !Interpreter.isEqual(left.evaluate(frame), right.evaluate(frame));
+      default:
+        return frame -> Interpreter.isEqual(left.evaluate(frame), right.evaluate(frame));
+    }
+  }
+
+  @Override
+  public Evaluator visitCallExpr(Expr.Call expr) {
+    Evaluator callee = callee(expr.callee);
+    Token paren = expr.paren;
+
+    // Calls with up to three arguments go through the fixed-arity entry points and build no argument list.
+    switch (expr.arguments.size()) {
+      case 0:
+        return frame -> {
+          ILoxCallable function = callable(callee.evaluate(frame), paren);
+          prepareCall(function, 0, paren);
+          return function.call0(interpreter);
+        };
+      case 1: {
+        Evaluator first = compile(expr.arguments.get(0));
+
+        return frame -> {
+          ILoxCallable function = callable(callee.evaluate(frame), paren);
+          Object a = first.evaluate(frame);
+          prepareCall(function, 1, paren);
+          return function.call1(interpreter, a);
+        };
+      }
+      case 2: {
+        Evaluator first = compile(expr.arguments.get(0));
+        Evaluator second = compile(expr.arguments.get(1));
+
+        return frame -> {
+          ILoxCallable function = callable(callee.evaluate(frame), paren);
+          Object a = first.evaluate(frame);
+          Object b = second.evaluate(frame);
+          prepareCall(function, 2, paren);
+          return function.call2(interpreter, a, b);
+        };
+      }
+      case 3: {
+        Evaluator first = compile(expr.arguments.get(0));
+        Evaluator second = compile(expr.arguments.get(1));
+        Evaluator third = compile(expr.arguments.get(2));
+
+        return frame -> {
+          ILoxCallable function = callable(callee.evaluate(frame), paren);
+          Object a = first.evaluate(frame);
+          Object b = second.evaluate(frame);
+          Object c = third.evaluate(frame);
+          prepareCall(function, 3, paren);
+          return function.call3(interpreter, a, b, c);
+        };
+      }
+      default:
+        return call(expr, false);
+    }
+  }
+
+  // A tail call of a Lox function evaluates to LoxFunction.TAIL_CALL, leaving the call for LoxFunction.call to make.
+  private Evaluator call(Expr.Call expr, boolean isTailCall) {
+    Evaluator callee = callee(expr.callee);
+    Evaluator[] arguments = new Evaluator[expr.arguments.size()];
+    Token paren = expr.paren;
+
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(expr.arguments.get(i));
+    }
+
+    return frame -> {
+      ILoxCallable callable = callable(callee.evaluate(frame), paren);
+      List<Object> values = new ArrayList<>(arguments.length);
+
+      for (Evaluator argument : arguments) {
+        values.add(argument.evaluate(frame));
+      }
+
+      prepareCall(callable, arguments.length, paren);
+
+      if (isTailCall && callable instanceof LoxFunction)
+        return interpreter.leaveTailCall((LoxFunction) callable, values);
+
+      return callable.call(interpreter, values);
+    };
+  }
+
+  private static ILoxCallable callable(Object callee, Token paren) {
+    if (!(callee instanceof ILoxCallable)) {
+      throw new RuntimeError(paren, "Can only call functions, methods and classes.");
+    }
+
+    return (ILoxCallable) callee;
+  }
+
+  // Runs once the arguments are evaluated: checks the callee's arity and records the call for the frame it pushes.
+  private void prepareCall(ILoxCallable callable, int argumentCount, Token paren) {
+    if (argumentCount != callable.arity()) {
+      throw new RuntimeError(paren, "Expected " + callable.arity() + " arguments but got " + argumentCount + ".");
+    }
+
+    interpreter.callFrom(paren);
+  }
+
+  @Override
+  public Evaluator visitGetExpr(Expr.Get expr) {
+    Evaluator object = compile(expr.object);
+
+    return frame -> Interpreter.readProperty(expr, object.evaluate(frame));
+  }
+
+  // A method called where it is read is never seen by anything else, so the call uses the instance's bound method.
+  private Evaluator callee(Expr callee) {
+    if (!(callee instanceof Expr.Get))
+      return compile(callee);
+
+    Expr.Get get = (Expr.Get) callee;
+    Evaluator object = compile(get.object);
+
+    return frame -> Interpreter.getProperty(get, object.evaluate(frame));
+  }
+
+  @Override
+  public Evaluator visitFunctionExpr(Expr.Function expr) {
+    Executor code = block(expr.body);
+
+    return frame -> new LoxFunction(expr.name, expr.params, expr.body, expr.frameSize, expr.upvalues, frame, false,
+        Visibility.UNSPECIFIED, code);
+  }
+
+  @Override
+  public Evaluator visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public Evaluator visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+
+    return frame -> value;
+  }
+
+  @Override
+  public Evaluator visitLogicalExpr(Expr.Logical expr) {
+    Evaluator left = compile(expr.left);
+    Evaluator right = compile(expr.right);
+
+    if (expr.operator.type == TokenType.OR) {
+      return frame -> {
+        Object value = left.evaluate(frame);
+        return Interpreter.isTruthy(value) ? value : right.evaluate(frame);
+      };
+    }
+
+    return frame -> {
+      Object value = left.evaluate(frame);
+      return Interpreter.isTruthy(value) ? right.evaluate(frame) : value;
+    };
+  }
+
+  @Override
+  public Evaluator visitSetExpr(Expr.Set expr) {
+    Evaluator object = compile(expr.object);
+    Evaluator value = compile(expr.value);
+
+    return frame -> {
+      Object instance = object.evaluate(frame);
+
+      if (!(instance instanceof LoxInstance)) {
+        throw new RuntimeError(expr.name, "Only instances have fields.");
+      }
+
+      Object result = value.evaluate(frame);
+
+      Interpreter.setProperty(expr, (LoxInstance) instance, result);
+      return result;
+    };
+  }
+
+  @Override
+  public Evaluator visitThisExpr(Expr.This expr) {
+    return variable(expr.keyword, expr.binding);
+  }
+
+  @Override
+  public Evaluator visitUnaryExpr(Expr.Unary expr) {
+    if (expr.operator.type == TokenType.MINUS) {
+      NumberEvaluator number = number(expr, expr.operator, Interpreter.NUMBER_OPERAND);
+      return frame -> number.evaluate(frame);
+    }
+
+    Condition condition = condition(expr);
+    return frame -> condition.test(frame);
+  }
+
+  @Override
+  public Evaluator visitVariableExpr(Expr.Variable expr) {
+    return variable(expr.name, expr.binding);
+  }
+
+  // Fused nodes only run in the Interpreter; they compile as the nodes they replace.
+  @Override
+  public Evaluator visitIncrementExpr(Expr.Increment expr) {
+    return compile(expr.original);
+  }
+
+  @Override
+  public Evaluator visitCompareExpr(Expr.Compare expr) {
+    return compile(expr.original);
+  }
+
+  @Override
+  public Evaluator visitFieldIncrementExpr(Expr.FieldIncrement expr) {
+    return compile(expr.original);
+  }
+
+  @Override
+  public Evaluator visitCallSumExpr(Expr.CallSum expr) {
+    return compile(expr.original);
+  }
+
+  // Optimizer only runs for the Interpreter; hoisted expressions compile where they are used.
+
+  @Override
+  public Evaluator visitInvariantExpr(Expr.Invariant expr) {
+    return compile(expr.original);
+  }
+
+  @Override
+  public Evaluator visitInlineExpr(Expr.Inline expr) {
+    return compile(expr.original);
+  }
+
+  private Executor compile(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Evaluator compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  // Block locals are hoisted into the enclosing frame, so a block needs no environment of its own.
+  private Executor block(List<Stmt> statements) {
+    Executor[] executors = new Executor[statements.size()];
+
+    for (int i = 0; i < executors.length; i++) {
+      executors[i] = compile(statements.get(i));
+    }
+
+    if (executors.length == 1)
+      return executors[0];
+
+    return frame -> {
+      for (Executor executor : executors) {
+        Completion completion = executor.execute(frame);
+
+        if (completion != Completion.NORMAL)
+          return completion;
+      }
+
+      return Completion.NORMAL;
+    };
+  }
+
+  private Evaluator variable(Token name, Binding binding) {
+    int slot = binding.slot;
+    int upvalue = binding.upvalue;
+
+    switch (Interpreter.access(binding)) {
+      case Binding.CONSTANT:
+        Object constant = binding.constant;
+        return frame -> constant;
+      case Binding.LOCAL:
+        return frame -> frame.getAt(slot);
+      case Binding.LOCAL_CELL:
+        return frame -> ((Cell) frame.getAt(slot)).value;
+      case Binding.UPVALUE:
+        return frame -> frame.upvalues[upvalue].value;
+      default:
+        return frame -> Interpreter.globalCell(name, binding, frame.globals).value;
+    }
+  }
+
+  // Evaluates an operand that must be a number without boxing it when the operand is itself numeric arithmetic.
+  private NumberEvaluator number(Expr expr, Token operator, String message) {
+    return number(expr, operator, message, null);
+  }
+
+  // The left operand of a binary operator is given the right one as next, which still runs before a bad left operand is
+  // reported.
+  private NumberEvaluator number(Expr expr, Token operator, String message, NumberEvaluator next) {
+    if (expr instanceof Expr.Binary && ((Expr.Binary) expr).isNumeric) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      String operandMessage = binary.operator.type == TokenType.PLUS ? Interpreter.ADD_OPERANDS
+          : Interpreter.NUMBER_OPERANDS;
+      NumberEvaluator right = number(binary.right, binary.operator, operandMessage);
+      NumberEvaluator left = number(binary.left, binary.operator, operandMessage, right);
+
+      switch (binary.operator.type) {
+        case MINUS:
+          return frame -> left.evaluate(frame) - right.evaluate(frame);
+        case PLUS:
+          return frame -> left.evaluate(frame) + right.evaluate(frame);
+        case SLASH:
+          return frame -> left.evaluate(frame) / right.evaluate(frame);
+        default:
+          return frame -> left.evaluate(frame) * right.evaluate(frame);
+      }
+    }
+
+    if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.MINUS) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      NumberEvaluator right = number(unary.right, unary.operator, Interpreter.NUMBER_OPERAND);
+      return frame -> -right.evaluate(frame);
+    }
+
+    if (expr instanceof Expr.Grouping)
+      return number(((Expr.Grouping) expr).expression, operator, message, next);
+
+    if (expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double) {
+      double value = (double) ((Expr.Literal) expr).value;
+      return frame -> value;
+    }
+
+    Evaluator value = compile(expr);
+
+    if (next == null)
+      return frame -> CompiledFunction.number(value.evaluate(frame), operator, message);
+
+    return frame -> {
+      Object number = value.evaluate(frame);
+
+      if (number instanceof Double)
+        return (double) number;
+
+      next.evaluate(frame);
+      throw new RuntimeError(operator, message);
+    };
+  }
+
+  // Tests the truthiness of an expression, comparing numbers without boxing the result.
+  private Condition condition(Expr expr) {
+    if (expr instanceof Expr.Grouping)
+      return condition(((Expr.Grouping) expr).expression);
+
+    if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.BANG) {
+      Condition right = condition(((Expr.Unary) expr).right);
+      return frame -> !right.test(frame);
+    }
+
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+
+      switch (binary.operator.type) {
+        case GREATER: {
+          NumberEvaluator right = number(binary.right, binary.operator, Interpreter.NUMBER_OPERANDS);
+          NumberEvaluator left = number(binary.left, binary.operator, Interpreter.NUMBER_OPERANDS, right);
+          return frame -> left.evaluate(frame) > right.evaluate(frame);
+        }
+        case GREATER_EQUAL: {
+          NumberEvaluator right = number(binary.right, binary.operator, Interpreter.NUMBER_OPERANDS);
+          NumberEvaluator left = number(binary.left, binary.operator, Interpreter.NUMBER_OPERANDS, right);
+          return frame -> left.evaluate(frame) >= right.evaluate(frame);
+        }
+        case LESS: {
+          NumberEvaluator right = number(binary.right, binary.operator, Interpreter.NUMBER_OPERANDS);
+          NumberEvaluator left = number(binary.left, binary.operator, Interpreter.NUMBER_OPERANDS, right);
+          return frame -> left.evaluate(frame) < right.evaluate(frame);
+        }
+        case LESS_EQUAL: {
+          NumberEvaluator right = number(binary.right, binary.operator, Interpreter.NUMBER_OPERANDS);
+          NumberEvaluator left = number(binary.left, binary.operator, Interpreter.NUMBER_OPERANDS, right);
+          return frame -> left.evaluate(frame) <= right.evaluate(frame);
+        }
+        default:
+          break;
+      }
+    }
+
+    Evaluator value = compile(expr);
+    return frame -> Interpreter.isTruthy(value.evaluate(frame));
+  }
+
+  // Globals extend the frame's snapshot; locals take their slot, in a cell when a closure captures them.
+  private static Store define(IDeclarator declarator) {
+    int slot = declarator.getSlot();
+
+    if (slot < 0) {
+      Symbol name = declarator.getName().symbol;
+      return (frame, value) -> frame.globals = frame.globals.define(name, value);
+    }
+
+    if (declarator.isCaptured())
+      return (frame, value) -> frame.assignAt(slot, new Cell(value));
+
+    return (frame, value) -> frame.assignAt(slot, value);
+  }
+
+  // Sets a binding created by define() whose value could only be built after the name was in scope.
+  private static Store initialize(IDeclarator declarator) {
+    int slot = declarator.getSlot();
+
+    if (slot < 0) {
+      Token name = declarator.getName();
+      return (frame, value) -> frame.globals.assign(name, value);
+    }
+
+    if (declarator.isCaptured())
+      return (frame, value) -> ((Cell) frame.getAt(slot)).value = value;
+
+    return (frame, value) -> frame.assignAt(slot, value);
+  }
+}
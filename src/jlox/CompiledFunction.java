@@ -0,0 +1,76 @@
+package jlox;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Base of the classes JvmCompiler generates for hot function bodies, with the helpers their code calls into.
+abstract class CompiledFunction {
+  // values the generated code cannot embed in its constant pool: tokens for errors, boxed numbers and global cells
+  final Object[] constants;
+
+  CompiledFunction(Object[] constants) {
+    this.constants = constants;
+  }
+
+  abstract Object invoke(Interpreter interpreter, List<Object> arguments);
+
+  static double number(Object value, Token operator, String message) {
+    if (value instanceof Double)
+      return (double) value;
+
+    throw new RuntimeError(operator, message);
+  }
+
+  static Object add(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left + (double) right;
+    }
+
+    if (left instanceof String && right instanceof String) {
+      return (String) left + (String) right;
+    }
+
+    throw new RuntimeError(operator, Interpreter.ADD_OPERANDS);
+  }
+
+  static ILoxCallable callable(Object callee, Token paren) {
+    if (!(callee instanceof ILoxCallable)) {
+      throw new RuntimeError(paren, "Can only call functions, methods and classes.");
+    }
+
+    return (ILoxCallable) callee;
+  }
+
+  static Object call(ILoxCallable function, Interpreter interpreter, Object[] arguments, Token paren) {
+    checkArity(function, arguments.length, interpreter, paren);
+    return function.call(interpreter, Arrays.asList(arguments));
+  }
+
+  static Object call0(ILoxCallable function, Interpreter interpreter, Token paren) {
+    checkArity(function, 0, interpreter, paren);
+    return function.call0(interpreter);
+  }
+
+  static Object call1(ILoxCallable function, Interpreter interpreter, Object a, Token paren) {
+    checkArity(function, 1, interpreter, paren);
+    return function.call1(interpreter, a);
+  }
+
+  static Object call2(ILoxCallable function, Interpreter interpreter, Object a, Object b, Token paren) {
+    checkArity(function, 2, interpreter, paren);
+    return function.call2(interpreter, a, b);
+  }
+
+  static Object call3(ILoxCallable function, Interpreter interpreter, Object a, Object b, Object c, Token paren) {
+    checkArity(function, 3, interpreter, paren);
+    return function.call3(interpreter, a, b, c);
+  }
+
+  private static void checkArity(ILoxCallable function, int argumentCount, Interpreter interpreter, Token paren) {
+    if (argumentCount != function.arity()) {
+      throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got " + argumentCount + ".");
+    }
+
+    interpreter.callFrom(paren);
+  }
+}
@@ -0,0 +1,18 @@
+package jlox;
+
+// Base of the classes JvmCompiler generates for hot loops. The Interpreter enters one in the middle of the loop's run
+// (on-stack replacement): it reads the frame's slots, runs the remaining iterations and writes the slots back.
+abstract class CompiledLoop {
+  // returned when the loop ran to its end, rather than returning from its function
+  static final Object COMPLETED = new Object();
+
+  final Object[] constants;
+  // snapshot the loop's global cells were resolved in; frames seeing another one need the loop compiled again
+  Environment globals;
+
+  CompiledLoop(Object[] constants) {
+    this.constants = constants;
+  }
+
+  abstract Object run(Interpreter interpreter, Environment frame);
+}
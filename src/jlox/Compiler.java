@@ -0,0 +1,571 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Compiles the resolved AST to bytecode for VM. Resolver has already laid out every frame, so the compiler only maps
+// bindings to instructions.
+class Compiler implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
+  private class Loop {
+    final Loop enclosing;
+    final List<Integer> breaks = new ArrayList<>();
+    final List<Integer> continues = new ArrayList<>();
+
+    Loop(Loop enclosing) {
+      this.enclosing = enclosing;
+    }
+  }
+
+  private class FunctionState {
+    final FunctionState enclosing;
+    final Chunk chunk = new Chunk();
+    final boolean isInitializer;
+    Loop loop = null;
+    // operand stack depth, tracked to size the VM stack on calls
+    int depth = 0;
+
+    FunctionState(FunctionState enclosing, boolean isInitializer) {
+      this.enclosing = enclosing;
+      this.isInitializer = isInitializer;
+    }
+  }
+
+  private FunctionState current = null;
+
+  VMFunction compile(List<Stmt> statements, int frameSize) {
+    return function(null, new ArrayList<>(), statements, frameSize, new ArrayList<>(), false);
+  }
+
+  private VMFunction function(Token name, List<Stmt.FunctionParameter> params, List<Stmt> body, int frameSize,
+      List<Upvalue> upvalues, boolean isInitializer) {
+    int[] capturedParams = params.stream().filter(param -> param.isCaptured).mapToInt(param -> param.slot).toArray();
+
+    return new VMFunction(name, params.size(), frameSize, upvalues, capturedParams, body(body, isInitializer));
+  }
+
+  private Chunk body(List<Stmt> body, boolean isInitializer) {
+    FunctionState state = new FunctionState(current, isInitializer);
+    current = state;
+
+    for (Stmt statement : body) {
+      compile(statement);
+    }
+
+    emit(isInitializer ? OpCode.RETURN_INSTANCE : OpCode.RETURN_NIL, null, 0);
+    state.chunk.finish();
+
+    current = state.enclosing;
+    return state.chunk;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    Map<Symbol, Integer> slots = new HashMap<>();
+    Set<Symbol> privateMembers = new HashSet<>();
+    Map<Symbol, VMFunction> methods = new HashMap<>();
+
+    for (Stmt.Var field : stmt.fields) {
+      slots.put(field.name.symbol, field.slot);
+
+      if (field.visibility == Visibility.PRIVATE)
+        privateMembers.add(field.name.symbol);
+    }
+
+    // The field initializers run in the instance frame, which the VM passes in as arguments.
+    VMFunction fields = new VMFunction(stmt.name, stmt.frameSize, stmt.frameSize, stmt.upvalues, new int[0],
+        body(new ArrayList<>(stmt.fields), false));
+
+    for (Stmt.Function method : stmt.methods) {
+      slots.put(method.name.symbol, method.slot);
+
+      if (method.visibility == Visibility.PRIVATE)
+        privateMembers.add(method.name.symbol);
+
+      methods.put(method.name.symbol, function(method.name, method.params, method.body, method.frameSize,
+          method.upvalues, method.name.lexeme.equals("init")));
+    }
+
+    VMClass.Declaration declaration = new VMClass.Declaration(stmt.name, slots, privateMembers, methods, fields,
+        stmt.frameSize, stmt.upvalues);
+
+    declare(stmt, () -> emit(OpCode.CLASS, constant(declaration), stmt.name, 1));
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    if (current.loop == null) {
+      Lox.error(stmt.keyword, "Break statement can be used only inside loops.");
+      return null;
+    }
+
+    current.loop.breaks.add(emitJump(OpCode.JUMP, 0));
+    return null;
+  }
+
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    if (current.loop == null) {
+      Lox.error(stmt.keyword, "Continue statement can be used only inside loops.");
+      return null;
+    }
+
+    current.loop.continues.add(emitJump(OpCode.JUMP, 0));
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    // An assignment to a local whose value is discarded stores and pops in one instruction.
+    if (stmt.expression instanceof Expr.Assign && ((Expr.Assign) stmt.expression).binding.slot >= 0) {
+      Expr.Assign assign = (Expr.Assign) stmt.expression;
+
+      compile(assign.value);
+      emit(assign.binding.isCaptured ? OpCode.INIT_LOCAL_CELL : OpCode.DEFINE_LOCAL, assign.binding.slot, assign.name,
+          -1);
+      return null;
+    }
+
+    compile(stmt.expression);
+    emit(OpCode.POP, null, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    }
+
+    int start = current.chunk.count;
+    int exit = -1;
+
+    if (stmt.condition != null) {
+      compile(stmt.condition);
+      exit = emitJump(OpCode.JUMP_IF_FALSE, -1);
+    }
+
+    Loop loop = beginLoop();
+    compile(stmt.body);
+    endLoop(loop, current.chunk.count);
+
+    // Closures created in this iteration keep its cell; the next iteration continues in a copy.
+    if (stmt.capturedSlot >= 0) {
+      emit(OpCode.REBIND_LOCAL_CELL, stmt.capturedSlot, null, 0);
+    }
+
+    if (stmt.increment != null) {
+      compile(stmt.increment);
+      emit(OpCode.POP, null, -1);
+    }
+
+    emit(OpCode.JUMP, start, null, 0);
+
+    if (exit >= 0)
+      patchJump(exit);
+    loop.breaks.forEach(this::patchJump);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    VMFunction function = function(stmt.name, stmt.params, stmt.body, stmt.frameSize, stmt.upvalues, false);
+
+    declare(stmt, () -> emit(OpCode.CLOSURE, constant(function), stmt.name, 1));
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionParameter(Stmt.FunctionParameter stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (current.isInitializer) {
+      emit(OpCode.RETURN_INSTANCE, stmt.keyword, 0);
+    } else if (stmt.value == null) {
+      emit(OpCode.RETURN_NIL, stmt.keyword, 0);
+    } else if (stmt.isTailCall) {
+      Expr.Call call = (Expr.Call) stmt.value;
+
+      callee(call.callee);
+      for (Expr argument : call.arguments) {
+        compile(argument);
+      }
+
+      emit(OpCode.TAIL_CALL, call.arguments.size(), call.paren, -call.arguments.size());
+      emit(OpCode.RETURN, stmt.keyword, -1);
+    } else {
+      compile(stmt.value);
+      emit(OpCode.RETURN, stmt.keyword, -1);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    compile(stmt.condition);
+    int elseJump = emitJump(OpCode.JUMP_IF_FALSE, -1);
+
+    compile(stmt.thenBranch);
+
+    if (stmt.elseBranch == null) {
+      patchJump(elseJump);
+      return null;
+    }
+
+    int endJump = emitJump(OpCode.JUMP, 0);
+    patchJump(elseJump);
+    compile(stmt.elseBranch);
+    patchJump(endJump);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      emit(OpCode.NIL, null, 1);
+    }
+
+    // Instance frames already hold a cell for every field before the initializers run.
+    if (stmt.isClassMember) {
+      emit(OpCode.INIT_LOCAL_CELL, stmt.slot, stmt.name, -1);
+    } else {
+      define(stmt);
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int start = current.chunk.count;
+
+    compile(stmt.condition);
+    int exit = emitJump(OpCode.JUMP_IF_FALSE, -1);
+
+    Loop loop = beginLoop();
+    compile(stmt.body);
+    endLoop(loop, start);
+
+    emit(OpCode.JUMP, start, null, 0);
+
+    patchJump(exit);
+    loop.breaks.forEach(this::patchJump);
+    return null;
+  }
+
+  @Override
+  public Void visitHoistStmt(Stmt.Hoist stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+
+    Binding binding = expr.binding;
+
+    if (binding.slot >= 0) {
+      emit(binding.isCaptured ? OpCode.SET_LOCAL_CELL : OpCode.SET_LOCAL, binding.slot, expr.name, 0);
+    } else if (binding.upvalue >= 0) {
+      emit(OpCode.SET_UPVALUE, binding.upvalue, expr.name, 0);
+    } else {
+      emit(OpCode.SET_GLOBAL, constant(new Chunk.Global(expr.name)), expr.name, 0);
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    compile(expr.left);
+    compile(expr.right);
+
+    switch (expr.operator.type) {
+      case BANG_EQUAL:
+        emit(OpCode.NOT_EQUAL, expr.operator, -1);
+        break;
+      case EQUAL_EQUAL:
+        emit(OpCode.EQUAL, expr.operator, -1);
+        break;
+      case GREATER:
+        emit(OpCode.GREATER, expr.operator, -1);
+        break;
+      case GREATER_EQUAL:
+        emit(OpCode.GREATER_EQUAL, expr.operator, -1);
+        break;
+      case LESS:
+        emit(OpCode.LESS, expr.operator, -1);
+        break;
+      case LESS_EQUAL:
+        emit(OpCode.LESS_EQUAL, expr.operator, -1);
+        break;
+      case MINUS:
+        emit(OpCode.SUBTRACT, expr.operator, -1);
+        break;
+      case PLUS:
+        emit(OpCode.ADD, expr.operator, -1);
+        break;
+      case SLASH:
+        emit(OpCode.DIVIDE, expr.operator, -1);
+        break;
+      case STAR:
+        emit(OpCode.MULTIPLY, expr.operator, -1);
+        break;
+      default:
+        break;
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    callee(expr.callee);
+
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+
+    emit(OpCode.CALL, expr.arguments.size(), expr.paren, -expr.arguments.size());
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+    emit(OpCode.GET_PROPERTY, constant(expr.name), expr.name, 0);
+    return null;
+  }
+
+  // A method called where it is read is never seen by anything else, so the call uses the instance's bound method.
+  private void callee(Expr callee) {
+    if (callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) callee;
+
+      compile(get.object);
+      emit(OpCode.GET_CALLEE, constant(get.name), get.name, 0);
+    } else {
+      compile(callee);
+    }
+  }
+
+  @Override
+  public Void visitFunctionExpr(Expr.Function expr) {
+    VMFunction function = function(expr.name, expr.params, expr.body, expr.frameSize, expr.upvalues, false);
+
+    emit(OpCode.CLOSURE, constant(function), expr.name, 1);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    literal(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+
+    int end = emitJump(expr.operator.type == TokenType.OR ? OpCode.JUMP_IF_TRUE_KEEP : OpCode.JUMP_IF_FALSE_KEEP, 0);
+
+    emit(OpCode.POP, null, -1);
+    compile(expr.right);
+    patchJump(end);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    compile(expr.value);
+    emit(OpCode.SET_PROPERTY, constant(expr.name), expr.name, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    variable(expr.keyword, expr.binding);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+    emit(expr.operator.type == TokenType.MINUS ? OpCode.NEGATE : OpCode.NOT, expr.operator, 0);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    variable(expr.name, expr.binding);
+    return null;
+  }
+
+  // Fused nodes only run in the Interpreter; they compile as the nodes they replace.
+  @Override
+  public Void visitIncrementExpr(Expr.Increment expr) {
+    compile(expr.original);
+    return null;
+  }
+
+  @Override
+  public Void visitCompareExpr(Expr.Compare expr) {
+    compile(expr.original);
+    return null;
+  }
+
+  @Override
+  public Void visitFieldIncrementExpr(Expr.FieldIncrement expr) {
+    compile(expr.original);
+    return null;
+  }
+
+  @Override
+  public Void visitCallSumExpr(Expr.CallSum expr) {
+    compile(expr.original);
+    return null;
+  }
+
+  // Optimizer only runs for the Interpreter; hoisted expressions compile where they are used.
+
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    compile(expr.original);
+    return null;
+  }
+
+  @Override
+  public Void visitInlineExpr(Expr.Inline expr) {
+    compile(expr.original);
+    return null;
+  }
+
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  private void literal(Object value) {
+    if (value == null) {
+      emit(OpCode.NIL, null, 1);
+    } else if (value.equals(true)) {
+      emit(OpCode.TRUE, null, 1);
+    } else if (value.equals(false)) {
+      emit(OpCode.FALSE, null, 1);
+    } else {
+      emit(OpCode.CONSTANT, constant(value), null, 1);
+    }
+  }
+
+  private void variable(Token name, Binding binding) {
+    if (binding.isConstant) {
+      literal(binding.constant);
+    } else if (binding.slot >= 0) {
+      emit(binding.isCaptured ? OpCode.GET_LOCAL_CELL : OpCode.GET_LOCAL, binding.slot, name, 1);
+    } else if (binding.upvalue >= 0) {
+      emit(OpCode.GET_UPVALUE, binding.upvalue, name, 1);
+    } else {
+      emit(OpCode.GET_GLOBAL, constant(new Chunk.Global(name)), name, 1);
+    }
+  }
+
+  // Pops the value on top of the stack into a new binding for the declarator.
+  private void define(IDeclarator declarator) {
+    Token name = declarator.getName();
+
+    if (declarator.getSlot() < 0) {
+      emit(OpCode.DEFINE_GLOBAL, constant(new Chunk.Global(name)), name, -1);
+    } else if (declarator.isCaptured()) {
+      emit(OpCode.DEFINE_LOCAL_CELL, declarator.getSlot(), name, -1);
+    } else {
+      emit(OpCode.DEFINE_LOCAL, declarator.getSlot(), name, -1);
+    }
+  }
+
+  // Declares a function or class before emitting its value, so the value can refer to itself.
+  private void declare(IDeclarator declarator, Runnable value) {
+    Token name = declarator.getName();
+
+    if (declarator.getSlot() < 0) {
+      emit(OpCode.NIL, null, 1);
+      define(declarator);
+      value.run();
+      emit(OpCode.INIT_GLOBAL, constant(new Chunk.Global(name)), name, -1);
+    } else if (declarator.isCaptured()) {
+      emit(OpCode.NIL, null, 1);
+      define(declarator);
+      value.run();
+      emit(OpCode.INIT_LOCAL_CELL, declarator.getSlot(), name, -1);
+    } else {
+      value.run();
+      define(declarator);
+    }
+  }
+
+  private Loop beginLoop() {
+    current.loop = new Loop(current.loop);
+    return current.loop;
+  }
+
+  private void endLoop(Loop loop, int continueTarget) {
+    loop.continues.forEach(jump -> current.chunk.code[jump] = continueTarget);
+    current.loop = loop.enclosing;
+  }
+
+  private int constant(Object value) {
+    return current.chunk.addConstant(value);
+  }
+
+  private void emit(int op, Token token, int stackEffect) {
+    current.chunk.write(op, token);
+    adjustStack(stackEffect);
+  }
+
+  private void emit(int op, int operand, Token token, int stackEffect) {
+    current.chunk.write(op, token);
+    current.chunk.write(operand, token);
+    adjustStack(stackEffect);
+  }
+
+  // Returns the offset of the jump's operand, to be patched with its target.
+  private int emitJump(int op, int stackEffect) {
+    emit(op, -1, null, stackEffect);
+    return current.chunk.count - 1;
+  }
+
+  private void patchJump(int operand) {
+    current.chunk.code[operand] = current.chunk.count;
+  }
+
+  private void adjustStack(int stackEffect) {
+    current.depth += stackEffect;
+    current.chunk.maxStack = Math.max(current.chunk.maxStack, current.depth);
+  }
+}
@@ -0,0 +1,8 @@
+package jlox;
+
+// How a statement finished in the Interpreter or in code ClosureCompiler built. Anything other than NORMAL stops the
+// statements enclosing it up to the loop or function call that handles it; a return leaves its value with the
+// Interpreter, and a tail call the function and arguments its caller runs instead.
+enum Completion {
+  NORMAL, RETURN, TAIL_CALL, BREAK, CONTINUE
+}
@@ -0,0 +1,364 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Folds constant expressions into literals and drops the code they show can never run.
+class ConstantFolder implements Expr.IVisitor<Expr>, Stmt.IVisitor<Stmt> {
+  private static final Object NOT_CONSTANT = new Object();
+
+  void fold(List<Stmt> statements) {
+    for (int i = 0; i < statements.size(); i++) {
+      Stmt folded = fold(statements.get(i));
+
+      if (folded == null) {
+        statements.remove(i--);
+        continue;
+      }
+
+      statements.set(i, folded);
+
+      // Nothing after a jump in the same list can run.
+      if (folded instanceof Stmt.Return || folded instanceof Stmt.Break || folded instanceof Stmt.Continue) {
+        statements.subList(i + 1, statements.size()).clear();
+      }
+    }
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    fold(stmt.statements);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    for (Stmt.Var field : stmt.fields) {
+      fold(field);
+    }
+
+    for (Stmt.Function method : stmt.methods) {
+      fold(method);
+    }
+
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitContinueStmt(Stmt.Continue stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    stmt.expression = fold(stmt.expression);
+
+    // A literal statement has no effect.
+    return stmt.expression instanceof Expr.Literal ? null : stmt;
+  }
+
+  @Override
+  public Stmt visitForStmt(Stmt.For stmt) {
+    Stmt initializer = stmt.initializer != null ? fold(stmt.initializer) : null;
+
+    if (stmt.condition != null) {
+      stmt.condition = fold(stmt.condition);
+
+      // Only the initializer of a loop that never runs is left.
+      if (stmt.condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) stmt.condition).value))
+        return initializer;
+    }
+
+    if (stmt.increment != null)
+      stmt.increment = fold(stmt.increment);
+
+    stmt.body = branch(stmt.body);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    parameters(stmt.params);
+    fold(stmt.body);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitFunctionParameter(Stmt.FunctionParameter stmt) {
+    if (stmt.initializer != null)
+      stmt.initializer = fold(stmt.initializer);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value != null)
+      stmt.value = fold(stmt.value);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    stmt.condition = fold(stmt.condition);
+
+    if (stmt.condition instanceof Expr.Literal) {
+      if (Interpreter.isTruthy(((Expr.Literal) stmt.condition).value))
+        return fold(stmt.thenBranch);
+
+      return stmt.elseBranch != null ? fold(stmt.elseBranch) : null;
+    }
+
+    stmt.thenBranch = branch(stmt.thenBranch);
+
+    if (stmt.elseBranch != null)
+      stmt.elseBranch = fold(stmt.elseBranch);
+
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null)
+      stmt.initializer = fold(stmt.initializer);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    stmt.condition = fold(stmt.condition);
+
+    if (stmt.condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) stmt.condition).value))
+      return null;
+
+    stmt.body = branch(stmt.body);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitHoistStmt(Stmt.Hoist stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    expr.value = fold(expr.value);
+    return expr;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = fold(expr.left);
+    Expr right = fold(expr.right);
+
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+      Object value = binary(expr.operator, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+
+      if (value != NOT_CONSTANT)
+        return new Expr.Literal(value);
+    }
+
+    if (left == expr.left && right == expr.right)
+      return expr;
+
+    Expr.Binary folded = new Expr.Binary(left, expr.operator, right);
+    folded.isNumeric = expr.isNumeric;
+    return folded;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    expr.callee = fold(expr.callee);
+
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      expr.arguments.set(i, fold(expr.arguments.get(i)));
+    }
+
+    return expr;
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    expr.object = fold(expr.object);
+    return expr;
+  }
+
+  @Override
+  public Expr visitFunctionExpr(Expr.Function expr) {
+    parameters(expr.params);
+    fold(expr.body);
+    return expr;
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = fold(expr.expression);
+
+    if (expression instanceof Expr.Literal)
+      return expression;
+
+    return expression == expr.expression ? expr : new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = fold(expr.left);
+
+    if (left instanceof Expr.Literal) {
+      boolean isTruthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+
+      if (expr.operator.type == TokenType.OR ? isTruthy : !isTruthy)
+        return left;
+
+      return fold(expr.right);
+    }
+
+    Expr right = fold(expr.right);
+
+    if (left == expr.left && right == expr.right)
+      return expr;
+
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    expr.object = fold(expr.object);
+    expr.value = fold(expr.value);
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = fold(expr.right);
+
+    if (right instanceof Expr.Literal) {
+      Object value = ((Expr.Literal) right).value;
+
+      if (expr.operator.type == TokenType.BANG)
+        return new Expr.Literal(!Interpreter.isTruthy(value));
+
+      if (value instanceof Double)
+        return new Expr.Literal(-(double) value);
+    }
+
+    return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr.binding.isConstant ? new Expr.Literal(expr.binding.constant) : expr;
+  }
+
+  // Fuser runs after folding, so there are no fused nodes yet.
+
+  @Override
+  public Expr visitIncrementExpr(Expr.Increment expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitCompareExpr(Expr.Compare expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitFieldIncrementExpr(Expr.FieldIncrement expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitCallSumExpr(Expr.CallSum expr) {
+    return expr;
+  }
+
+  // Optimizer runs after folding.
+
+  @Override
+  public Expr visitInvariantExpr(Expr.Invariant expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitInlineExpr(Expr.Inline expr) {
+    return expr;
+  }
+
+  private Stmt fold(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Expr fold(Expr expr) {
+    return expr.accept(this);
+  }
+
+  private void parameters(List<Stmt.FunctionParameter> params) {
+    for (Stmt.FunctionParameter param : params) {
+      fold(param);
+    }
+  }
+
+  // Branches and loop bodies cannot be removed, only emptied.
+  private Stmt branch(Stmt stmt) {
+    Stmt folded = fold(stmt);
+
+    return folded != null ? folded : new Stmt.Block(new ArrayList<>());
+  }
+
+  // Returns NOT_CONSTANT when the operator would fail.
+  private Object binary(Token operator, Object left, Object right) {
+    switch (operator.type) {
+      case BANG_EQUAL:
+        return !Interpreter.isEqual(left, right);
+      case EQUAL_EQUAL:
+        return Interpreter.isEqual(left, right);
+      case PLUS:
+        if (left instanceof String && right instanceof String)
+          return (String) left + (String) right;
+        break;
+      default:
+        break;
+    }
+
+    if (!(left instanceof Double) || !(right instanceof Double))
+      return NOT_CONSTANT;
+
+    double a = (double) left;
+    double b = (double) right;
+
+    switch (operator.type) {
+      case MINUS:
+        return a - b;
+      case PLUS:
+        return a + b;
+      case SLASH:
+        return a / b;
+      case STAR:
+        return a * b;
+      case GREATER:
+        return a > b;
+      case GREATER_EQUAL:
+        return a >= b;
+      case LESS:
+        return a < b;
+      case LESS_EQUAL:
+        return a <= b;
+      default:
+        return NOT_CONSTANT;
+    }
+  }
+}
@@ -1,78 +1,112 @@
 package jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 
 class Environment {
-  Environment enclosing;
-  private Map<String, Object> values = new HashMap<>();
-  private boolean isMutable;
+  private static int versions = 0;
+
+  // snapshot of the global scope visible from this frame; top-level code advances it as it declares globals
+  Environment globals;
+  // cells captured by the closure running in this frame
+  Cell[] upvalues;
+  // global bindings; every define() yields a new snapshot (and version) sharing structure with the old one
+  private final PersistentMap<Symbol, Cell> values;
+  final int version;
+  // resolved local bindings, indexed by the slots assigned in Resolver
+  private final Object[] slots;
 
   Environment() {
-    enclosing = null;
-    isMutable = false;
+    this(PersistentMap.empty());
   }
 
-  Environment(Environment enclosing) {
-    this.enclosing = enclosing;
-    this.isMutable = false;
+  private Environment(PersistentMap<Symbol, Cell> values) {
+    this.globals = this;
+    this.upvalues = null;
+    this.values = values;
+    this.version = ++versions;
+    this.slots = null;
   }
 
-  Environment(Environment enclosing, boolean isMutable) {
-    this.enclosing = enclosing;
-    this.isMutable = isMutable;
+  // frame of top-level code, a function call or an instance
+  Environment(Environment globals, Cell[] upvalues, int size) {
+    this.globals = globals;
+    this.upvalues = upvalues;
+    this.values = null;
+    this.version = 0;
+    this.slots = new Object[size];
   }
 
-  public Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
-      return values.get(name.lexeme);
+  // Closures copy cells out of a frame instead of referencing it, so a call frame can be reused once it returns.
+  void reuse(Environment globals, Cell[] upvalues) {
+    this.globals = globals;
+    this.upvalues = upvalues;
+  }
+
+  void clear(int size) {
+    Arrays.fill(slots, 0, size, null);
+    reuse(null, null);
+  }
+
+  int capacity() {
+    return slots.length;
+  }
+
+  Cell cellFor(Token name) {
+    Cell cell = values.getOrDefault(name.symbol, null);
+
+    if (cell == null) {
+      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
-    if (enclosing != null)
-      return enclosing.get(name);
+    return cell;
+  }
 
-    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+  public Object get(Token name) {
+    return cellFor(name).value;
   }
 
   public void assign(Token name, Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
-      return;
-    }
+    cellFor(name).value = value;
+  }
 
-    if (enclosing != null) {
-      enclosing.assign(name, value);
-      return;
-    }
+  public Environment define(Symbol name, Object value) {
+    return new Environment(values.assoc(name, new Cell(value)));
+  }
 
-    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+  Object getAt(int slot) {
+    return slots[slot];
   }
 
-  public boolean has(String key) {
-    return values.containsKey(key);
+  void assignAt(int slot, Object value) {
+    slots[slot] = value;
   }
 
-  public Environment define(String name, Object value) {
-    if (!isMutable) {
-      Environment newEnv = new Environment();
+  Cell[] capture(List<Upvalue> captures) {
+    Cell[] cells = new Cell[captures.size()];
 
-      newEnv.enclosing = this.enclosing;
-      newEnv.values = new HashMap<>(this.values);
-      newEnv.values.put(name, value);
+    for (int i = 0; i < cells.length; i++) {
+      Upvalue upvalue = captures.get(i);
 
-      return newEnv;
+      if (upvalue.isLocal) {
+        cells[i] = (Cell) slots[upvalue.index];
+      } else {
+        cells[i] = upvalues[upvalue.index];
+      }
     }
 
-    values.put(name, value);
-
-    return this;
+    return cells;
   }
 
   @Override
   public String toString() {
+    if (slots != null) {
+      return Arrays.toString(slots);
+    }
+
     StringBuilder strBuilder = new StringBuilder();
 
-    values.forEach((key, value) -> strBuilder.append(key + ":" + value + "\n"));
+    values.forEach((key, cell) -> strBuilder.append(key + ":" + cell.value + "\n"));
 
     return strBuilder.toString();
   }
@@ -1,8 +1,32 @@
 package jlox;
 
+import java.io.Serializable;
 import java.util.List;
 
-abstract class Expr {
+// Nodes are serializable so Jloxc can ship a resolved tree; the runtime caches they hold are empty until it runs.
+abstract sealed class Expr implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // Dense kind tags, one per node class, for dispatching with a switch instead of a visitor.
+  static final int ASSIGN = 0;
+  static final int BINARY = 1;
+  static final int CALL = 2;
+  static final int GET = 3;
+  static final int FUNCTION = 4;
+  static final int GROUPING = 5;
+  static final int LITERAL = 6;
+  static final int LOGICAL = 7;
+  static final int SET = 8;
+  static final int THIS = 9;
+  static final int UNARY = 10;
+  static final int VARIABLE = 11;
+  static final int INCREMENT = 12;
+  static final int COMPARE = 13;
+  static final int FIELD_INCREMENT = 14;
+  static final int CALL_SUM = 15;
+  static final int INVARIANT = 16;
+  static final int INLINE = 17;
+
   interface IVisitor<R> {
     R visitAssignExpr(Assign expr);
 
@@ -27,10 +51,25 @@ abstract class Expr {
     R visitUnaryExpr(Unary expr);
 
     R visitVariableExpr(Variable expr);
+
+    R visitIncrementExpr(Increment expr);
+
+    R visitCompareExpr(Compare expr);
+
+    R visitFieldIncrementExpr(FieldIncrement expr);
+
+    R visitCallSumExpr(CallSum expr);
+
+    R visitInvariantExpr(Invariant expr);
+
+    R visitInlineExpr(Inline expr);
   }
 
-  static class Assign extends Expr {
+  static final class Assign extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Assign(Token name, Expr value) {
+      super(ASSIGN);
       this.name = name;
       this.value = value;
     }
@@ -41,11 +80,21 @@ abstract class Expr {
     }
 
     final Token name;
-    final Expr value;
+    // replaced by ConstantFolder with its folded value
+    Expr value;
+    final Binding binding = new Binding();
   }
 
-  static class Binary extends Expr {
+  static final class Binary extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    static final int UNSPECIALIZED = 0;
+    static final int ADD_NUMBERS = 1;
+    static final int ADD_STRINGS = 2;
+    static final int GENERIC = 3;
+
     Binary(Expr left, Token operator, Expr right) {
+      super(BINARY);
       this.left = left;
       this.operator = operator;
       this.right = right;
@@ -59,10 +108,17 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    // set by Resolver when the result is always a number, so operands can be evaluated unboxed
+    boolean isNumeric;
+    // operand types Interpreter has seen a '+' applied to
+    int specialization = UNSPECIALIZED;
   }
 
-  static class Call extends Expr {
+  static final class Call extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Call(Expr callee, Token paren, List<Expr> arguments) {
+      super(CALL);
       this.callee = callee;
       this.paren = paren;
       this.arguments = arguments;
@@ -73,13 +129,20 @@ abstract class Expr {
       return visitor.visitCallExpr(this);
     }
 
-    final Expr callee;
+    // replaced by ConstantFolder with its folded value
+    Expr callee;
     final Token paren;
     final List<Expr> arguments;
+    // the only callee seen so far, already checked to be callable with this many arguments
+    transient ILoxCallable cachedCallee;
+    boolean isMegamorphic = false;
   }
 
-  static class Get extends Expr {
+  static final class Get extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Get(Expr object, Token name) {
+      super(GET);
       this.object = object;
       this.name = name;
     }
@@ -89,12 +152,20 @@ abstract class Expr {
       return visitor.visitGetExpr(this);
     }
 
-    final Expr object;
+    // replaced by ConstantFolder with its folded value
+    Expr object;
     final Token name;
+    // the only class seen so far and the slot of the (public) property in its instances
+    transient LoxClass cachedClass;
+    int cachedSlot;
+    boolean isMegamorphic = false;
   }
 
-  static class Function extends Expr {
+  static final class Function extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Function(Token name, List<Stmt.FunctionParameter> params, List<Stmt> body) {
+      super(FUNCTION);
       this.name = name;
       this.params = params;
       this.body = body;
@@ -108,10 +179,15 @@ abstract class Expr {
     final Token name;
     final List<Stmt.FunctionParameter> params;
     final List<Stmt> body;
+    int frameSize = 0;
+    List<Upvalue> upvalues;
   }
 
-  static class Grouping extends Expr {
+  static final class Grouping extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Grouping(Expr expression) {
+      super(GROUPING);
       this.expression = expression;
     }
 
@@ -123,8 +199,11 @@ abstract class Expr {
     final Expr expression;
   }
 
-  static class Literal extends Expr {
+  static final class Literal extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Literal(Object value) {
+      super(LITERAL);
       this.value = value;
     }
 
@@ -136,8 +215,11 @@ abstract class Expr {
     final Object value;
   }
 
-  static class Logical extends Expr {
+  static final class Logical extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Logical(Expr left, Token operator, Expr right) {
+      super(LOGICAL);
       this.left = left;
       this.operator = operator;
       this.right = right;
@@ -153,8 +235,11 @@ abstract class Expr {
     final Expr right;
   }
 
-  static class Set extends Expr {
+  static final class Set extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Set(Expr object, Token name, Expr value) {
+      super(SET);
       this.object = object;
       this.name = name;
       this.value = value;
@@ -165,13 +250,17 @@ abstract class Expr {
       return visitor.visitSetExpr(this);
     }
 
-    final Expr object;
+    // object and value are replaced by ConstantFolder with their folded values
+    Expr object;
     final Token name;
-    final Expr value;
+    Expr value;
   }
 
-  static class This extends Expr {
+  static final class This extends Expr {
+    private static final long serialVersionUID = 1L;
+
     This(Token keyword) {
+      super(THIS);
       this.keyword = keyword;
     }
 
@@ -181,10 +270,14 @@ abstract class Expr {
     }
 
     final Token keyword;
+    final Binding binding = new Binding();
   }
 
-  static class Unary extends Expr {
+  static final class Unary extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Unary(Token operator, Expr right) {
+      super(UNARY);
       this.operator = operator;
       this.right = right;
     }
@@ -198,8 +291,11 @@ abstract class Expr {
     final Expr right;
   }
 
-  static class Variable extends Expr {
+  static final class Variable extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Variable(Token name) {
+      super(VARIABLE);
       this.name = name;
     }
 
@@ -209,6 +305,172 @@ abstract class Expr {
     }
 
     final Token name;
+    final Binding binding = new Binding();
+  }
+
+  // Fused nodes replace common statement-level shapes once Fuser has run; each keeps the node it replaced for the
+  // engines that do not execute it directly.
+
+  // x = x + k, x = k + x or x = x - k with a number k
+  static final class Increment extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    Increment(Assign original, Variable variable, Token operator, double delta) {
+      super(INCREMENT);
+      this.original = original;
+      this.variable = variable;
+      this.operator = operator;
+      this.delta = delta;
+    }
+
+    @Override
+    <R> R accept(IVisitor<R> visitor) {
+      return visitor.visitIncrementExpr(this);
+    }
+
+    final Assign original;
+    final Variable variable;
+    final Token operator;
+    final double delta;
+  }
+
+  // a comparison of a variable with another variable or a number
+  static final class Compare extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    Compare(Binary original, Variable left, Variable right, double constant) {
+      super(COMPARE);
+      this.original = original;
+      this.left = left;
+      this.right = right;
+      this.constant = constant;
+    }
+
+    @Override
+    <R> R accept(IVisitor<R> visitor) {
+      return visitor.visitCompareExpr(this);
+    }
+
+    final Binary original;
+    final Variable left;
+    // null when comparing with the constant
+    final Variable right;
+    final double constant;
+  }
+
+  // o.f = o.f + k or o.f = o.f - k with a number k, where o is a variable or 'this'
+  static final class FieldIncrement extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    FieldIncrement(Set original, Token objectName, Binding objectBinding, Get get, Token operator, double delta) {
+      super(FIELD_INCREMENT);
+      this.original = original;
+      this.objectName = objectName;
+      this.objectBinding = objectBinding;
+      this.get = get;
+      this.operator = operator;
+      this.delta = delta;
+    }
+
+    @Override
+    <R> R accept(IVisitor<R> visitor) {
+      return visitor.visitFieldIncrementExpr(this);
+    }
+
+    final Set original;
+    final Token objectName;
+    final Binding objectBinding;
+    final Get get;
+    final Token operator;
+    final double delta;
+  }
+
+  // f(a - 1) + g(b - 2): the sum of two calls of variables, each with a variable plus or minus a number as its only
+  // argument
+  static final class CallSum extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    static class OffsetCall implements Serializable {
+      private static final long serialVersionUID = 1L;
+
+      OffsetCall(Call call, Variable callee, Variable argument, Token operator, double delta) {
+        this.call = call;
+        this.callee = callee;
+        this.argument = argument;
+        this.operator = operator;
+        this.delta = delta;
+      }
+
+      final Call call;
+      final Variable callee;
+      final Variable argument;
+      final Token operator;
+      final double delta;
+    }
+
+    CallSum(Binary original, OffsetCall left, OffsetCall right) {
+      super(CALL_SUM);
+      this.original = original;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    <R> R accept(IVisitor<R> visitor) {
+      return visitor.visitCallSumExpr(this);
+    }
+
+    final Binary original;
+    final OffsetCall left;
+    final OffsetCall right;
+  }
+
+  // A loop-invariant numeric expression Optimizer has hoisted into a frame slot. The slot holds its value, or nil when
+  // the operands were not all numbers on entry to the loop and the expression must be evaluated to report the error.
+  static final class Invariant extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    Invariant(Expr original, int slot) {
+      super(INVARIANT);
+      this.original = original;
+      this.slot = slot;
+    }
+
+    @Override
+    <R> R accept(IVisitor<R> visitor) {
+      return visitor.visitInvariantExpr(this);
+    }
+
+    final Expr original;
+    final int slot;
+  }
+
+  // A call of a small function Inliner has copied into the caller. The arguments of the original call go into the
+  // caller's frame slots from firstSlot on, where the copied body keeps its parameters and locals.
+  static final class Inline extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    Inline(Call original, int firstSlot, List<Stmt> body) {
+      super(INLINE);
+      this.original = original;
+      this.firstSlot = firstSlot;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(IVisitor<R> visitor) {
+      return visitor.visitInlineExpr(this);
+    }
+
+    final Call original;
+    final int firstSlot;
+    final List<Stmt> body;
+  }
+
+  final int kind;
+
+  Expr(int kind) {
+    this.kind = kind;
   }
 
   abstract <R> R accept(IVisitor<R> visitor);
@@ -0,0 +1,383 @@
+package jlox;
+
+import java.util.List;
+
+// Rewrites resolved statements for the Interpreter, replacing the expressions that dominate typical scripts with fused
+// nodes it executes in one step: variable and field increments, comparisons of a variable in loop conditions and the
+// sum of two recursive calls in a return. Only expressions a statement evaluates directly are fused.
+class Fuser implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
+  void fuse(List<? extends Stmt> statements) {
+    for (Stmt statement : statements) {
+      visit(statement);
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    fuse(stmt.statements);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    fuse(stmt.fields);
+
+    for (Stmt.Function method : stmt.methods) {
+      fuse(method.body);
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    stmt.expression = fuse(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    if (stmt.initializer != null)
+      visit(stmt.initializer);
+    if (stmt.condition != null)
+      stmt.condition = fuse(stmt.condition);
+    if (stmt.increment != null)
+      stmt.increment = fuse(stmt.increment);
+
+    visit(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    fuse(stmt.params);
+    fuse(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionParameter(Stmt.FunctionParameter stmt) {
+    if (stmt.initializer != null)
+      visit(stmt.initializer);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value != null)
+      stmt.value = fuse(stmt.value);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    stmt.condition = fuse(stmt.condition);
+    visit(stmt.thenBranch);
+    if (stmt.elseBranch != null)
+      visit(stmt.elseBranch);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null)
+      visit(stmt.initializer);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    stmt.condition = fuse(stmt.condition);
+    visit(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitHoistStmt(Stmt.Hoist stmt) {
+    return null;
+  }
+
+  // Expressions are only walked for the function bodies they contain.
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    visit(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    visit(expr.left);
+    visit(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    visit(expr.callee);
+
+    for (Expr argument : expr.arguments) {
+      visit(argument);
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    visit(expr.object);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionExpr(Expr.Function expr) {
+    fuse(expr.params);
+    fuse(expr.body);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    visit(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    visit(expr.left);
+    visit(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    visit(expr.object);
+    visit(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    visit(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitIncrementExpr(Expr.Increment expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitCompareExpr(Expr.Compare expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitFieldIncrementExpr(Expr.FieldIncrement expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitCallSumExpr(Expr.CallSum expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitInlineExpr(Expr.Inline expr) {
+    for (Expr argument : expr.original.arguments) {
+      visit(argument);
+    }
+
+    fuse(expr.body);
+    return null;
+  }
+
+  private void visit(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void visit(Expr expr) {
+    expr.accept(this);
+  }
+
+  // Returns the fused node for an expression of one of the fused shapes, or the expression itself.
+  private Expr fuse(Expr expr) {
+    visit(expr);
+
+    if (expr instanceof Expr.Assign)
+      return increment((Expr.Assign) expr);
+    if (expr instanceof Expr.Set)
+      return fieldIncrement((Expr.Set) expr);
+    if (expr instanceof Expr.Binary)
+      return binary((Expr.Binary) expr);
+
+    return expr;
+  }
+
+  private Expr increment(Expr.Assign assign) {
+    if (!(assign.value instanceof Expr.Binary))
+      return assign;
+
+    Expr.Binary binary = (Expr.Binary) assign.value;
+    Expr.Variable variable = offsetVariable(binary, true);
+
+    if (variable == null || !variable.name.lexeme.equals(assign.name.lexeme))
+      return assign;
+
+    return new Expr.Increment(assign, variable, binary.operator, offset(binary, variable));
+  }
+
+  private Expr fieldIncrement(Expr.Set set) {
+    if (!(set.value instanceof Expr.Binary) || !isNamed(set.object))
+      return set;
+
+    Expr.Binary binary = (Expr.Binary) set.value;
+    Expr.Get get = offsetGet(binary);
+
+    if (get == null || !get.name.lexeme.equals(set.name.lexeme) || !isNamed(get.object)
+        || !name(get.object).lexeme.equals(name(set.object).lexeme))
+      return set;
+
+    Binding binding = set.object instanceof Expr.This ? ((Expr.This) set.object).binding
+        : ((Expr.Variable) set.object).binding;
+
+    return new Expr.FieldIncrement(set, name(set.object), binding, get, binary.operator, offset(binary, get));
+  }
+
+  private Expr binary(Expr.Binary binary) {
+    switch (binary.operator.type) {
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        return compare(binary);
+      case PLUS:
+        return callSum(binary);
+      default:
+        return binary;
+    }
+  }
+
+  private Expr compare(Expr.Binary binary) {
+    if (!(binary.left instanceof Expr.Variable))
+      return binary;
+
+    Expr.Variable left = (Expr.Variable) binary.left;
+
+    if (binary.right instanceof Expr.Variable)
+      return new Expr.Compare(binary, left, (Expr.Variable) binary.right, 0);
+
+    if (isNumber(binary.right))
+      return new Expr.Compare(binary, left, null, (double) ((Expr.Literal) binary.right).value);
+
+    return binary;
+  }
+
+  private Expr callSum(Expr.Binary binary) {
+    Expr.CallSum.OffsetCall left = offsetCall(binary.left);
+    Expr.CallSum.OffsetCall right = offsetCall(binary.right);
+
+    if (left == null || right == null)
+      return binary;
+
+    return new Expr.CallSum(binary, left, right);
+  }
+
+  private Expr.CallSum.OffsetCall offsetCall(Expr expr) {
+    if (!(expr instanceof Expr.Call))
+      return null;
+
+    Expr.Call call = (Expr.Call) expr;
+
+    if (!(call.callee instanceof Expr.Variable) || call.arguments.size() != 1
+        || !(call.arguments.get(0) instanceof Expr.Binary))
+      return null;
+
+    Expr.Binary argument = (Expr.Binary) call.arguments.get(0);
+    Expr.Variable variable = offsetVariable(argument, false);
+
+    if (variable == null)
+      return null;
+
+    return new Expr.CallSum.OffsetCall(call, (Expr.Variable) call.callee, variable, argument.operator,
+        offset(argument, variable));
+  }
+
+  // The variable in v + k, or k + v when commutative, or v - k; null for any other expression.
+  private Expr.Variable offsetVariable(Expr.Binary binary, boolean isCommutative) {
+    Expr operand = offsetOperand(binary, isCommutative);
+
+    return operand instanceof Expr.Variable ? (Expr.Variable) operand : null;
+  }
+
+  private Expr.Get offsetGet(Expr.Binary binary) {
+    Expr operand = offsetOperand(binary, false);
+
+    return operand instanceof Expr.Get ? (Expr.Get) operand : null;
+  }
+
+  private Expr offsetOperand(Expr.Binary binary, boolean isCommutative) {
+    switch (binary.operator.type) {
+      case PLUS:
+        if (isNumber(binary.right))
+          return binary.left;
+        if (isCommutative && isNumber(binary.left))
+          return binary.right;
+        return null;
+      case MINUS:
+        return isNumber(binary.right) ? binary.left : null;
+      default:
+        return null;
+    }
+  }
+
+  // The number added to the operand by an offset expression.
+  private double offset(Expr.Binary binary, Expr operand) {
+    Expr.Literal number = (Expr.Literal) (binary.left == operand ? binary.right : binary.left);
+    double value = (double) number.value;
+
+    return binary.operator.type == TokenType.MINUS ? -value : value;
+  }
+
+  private boolean isNumber(Expr expr) {
+    return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+  }
+
+  private boolean isNamed(Expr expr) {
+    return expr instanceof Expr.Variable || expr instanceof Expr.This;
+  }
+
+  private Token name(Expr expr) {
+    return expr instanceof Expr.This ? ((Expr.This) expr).keyword : ((Expr.Variable) expr).name;
+  }
+}
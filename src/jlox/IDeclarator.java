@@ -4,4 +4,12 @@ interface IDeclarator {
   Token getName();
 
   Visibility getVisibility();
+
+  int getSlot();
+
+  void setSlot(int slot);
+
+  boolean isCaptured();
+
+  void setCaptured(boolean isCaptured);
 }
@@ -1,9 +1,29 @@
 package jlox;
 
+import java.util.Arrays;
 import java.util.List;
 
 interface ILoxCallable {
   int arity();
 
   Object call(Interpreter interpreter, List<Object> arguments);
+
+  // Fixed-arity entry points for call sites that have checked the arity. Callables override them to take their
+  // arguments without a list; the defaults build one.
+
+  default Object call0(Interpreter interpreter) {
+    return call(interpreter, Arrays.asList());
+  }
+
+  default Object call1(Interpreter interpreter, Object a) {
+    return call(interpreter, Arrays.asList(a));
+  }
+
+  default Object call2(Interpreter interpreter, Object a, Object b) {
+    return call(interpreter, Arrays.asList(a, b));
+  }
+
+  default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    return call(interpreter, Arrays.asList(a, b, c));
+  }
 }
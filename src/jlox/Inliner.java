@@ -0,0 +1,504 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Copies the bodies of small top-level functions that are never reassigned and call and capture nothing into their
+// call sites, in new slots at the end of the caller's frame.
+class Inliner implements Expr.IVisitor<Expr>, Stmt.IVisitor<Stmt> {
+  private enum Mode {
+    // records the global names declared and assigned, changing nothing
+    COLLECT,
+    // replaces the calls of functions declared so far
+    INLINE
+  }
+
+  // the most nodes a body may have to be copied into its callers
+  private static final int MAX_SIZE = 32;
+
+  private Mode mode = Mode.COLLECT;
+  private final Map<Symbol, Integer> declarations = new HashMap<>();
+  private final Set<Symbol> assigned = new HashSet<>();
+  // the functions whose calls are inlined, by name
+  private final Map<Symbol, Stmt.Function> functions = new HashMap<>();
+  private int frameSize = 0;
+
+  // Returns the frame size top-level code needs with the slots of the bodies inlined into it.
+  int inline(List<Stmt> statements, int frameSize) {
+    for (Stmt statement : statements) {
+      if (statement instanceof IDeclarator)
+        declarations.merge(((IDeclarator) statement).getName().symbol, 1, Integer::sum);
+
+      inline(statement);
+    }
+
+    mode = Mode.INLINE;
+    this.frameSize = frameSize;
+
+    // A function is only inlined into the statements that follow its declaration, which run once it is defined.
+    for (Stmt statement : statements) {
+      inline(statement);
+
+      if (statement instanceof Stmt.Function && isInlinable((Stmt.Function) statement))
+        functions.put(((Stmt.Function) statement).name.symbol, (Stmt.Function) statement);
+    }
+
+    return this.frameSize;
+  }
+
+  private int function(List<Stmt> body, int frameSize) {
+    int enclosingFrameSize = this.frameSize;
+    this.frameSize = frameSize;
+
+    for (Stmt statement : body) {
+      inline(statement);
+    }
+
+    int size = this.frameSize;
+    this.frameSize = enclosingFrameSize;
+    return size;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    for (Stmt statement : stmt.statements) {
+      inline(statement);
+    }
+
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    // Field initializers run in instance frames, which have no room for inlined bodies.
+    if (mode == Mode.COLLECT) {
+      for (Stmt.Var field : stmt.fields) {
+        inline(field);
+      }
+    }
+
+    for (Stmt.Function method : stmt.methods) {
+      method.frameSize = function(method.body, method.frameSize);
+    }
+
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitContinueStmt(Stmt.Continue stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    stmt.expression = inline(stmt.expression);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitForStmt(Stmt.For stmt) {
+    if (stmt.initializer != null)
+      inline(stmt.initializer);
+    if (stmt.condition != null)
+      stmt.condition = inline(stmt.condition);
+    if (stmt.increment != null)
+      stmt.increment = inline(stmt.increment);
+
+    stmt.body = inline(stmt.body);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    stmt.frameSize = function(stmt.body, stmt.frameSize);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitFunctionParameter(Stmt.FunctionParameter stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value != null)
+      stmt.value = inline(stmt.value);
+
+    // An inlined call is no longer a call to leave for the caller.
+    stmt.isTailCall = stmt.isTailCall && stmt.value instanceof Expr.Call;
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    stmt.condition = inline(stmt.condition);
+    stmt.thenBranch = inline(stmt.thenBranch);
+
+    if (stmt.elseBranch != null)
+      stmt.elseBranch = inline(stmt.elseBranch);
+
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null)
+      stmt.initializer = inline(stmt.initializer);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    stmt.condition = inline(stmt.condition);
+    stmt.body = inline(stmt.body);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitHoistStmt(Stmt.Hoist stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    expr.value = inline(expr.value);
+
+    if (mode == Mode.COLLECT && isGlobal(expr.binding))
+      assigned.add(expr.name.symbol);
+
+    return expr;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = inline(expr.left);
+    Expr right = inline(expr.right);
+
+    if (left == expr.left && right == expr.right)
+      return expr;
+
+    Expr.Binary inlined = new Expr.Binary(left, expr.operator, right);
+    inlined.isNumeric = expr.isNumeric;
+    return inlined;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    expr.callee = inline(expr.callee);
+
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      expr.arguments.set(i, inline(expr.arguments.get(i)));
+    }
+
+    Stmt.Function function = callee(expr);
+
+    if (function == null)
+      return expr;
+
+    int firstSlot = frameSize;
+    frameSize += function.frameSize;
+    return new Expr.Inline(expr, firstSlot, copy(function.body, firstSlot));
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    expr.object = inline(expr.object);
+    return expr;
+  }
+
+  @Override
+  public Expr visitFunctionExpr(Expr.Function expr) {
+    expr.frameSize = function(expr.body, expr.frameSize);
+    return expr;
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = inline(expr.expression);
+
+    return expression == expr.expression ? expr : new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = inline(expr.left);
+    Expr right = inline(expr.right);
+
+    if (left == expr.left && right == expr.right)
+      return expr;
+
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    expr.object = inline(expr.object);
+    expr.value = inline(expr.value);
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = inline(expr.right);
+
+    return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+
+  // Fuser runs after inlining, so there are no fused nodes yet.
+
+  @Override
+  public Expr visitIncrementExpr(Expr.Increment expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitCompareExpr(Expr.Compare expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitFieldIncrementExpr(Expr.FieldIncrement expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitCallSumExpr(Expr.CallSum expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitInvariantExpr(Expr.Invariant expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitInlineExpr(Expr.Inline expr) {
+    return expr;
+  }
+
+  private Stmt inline(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Expr inline(Expr expr) {
+    return expr.accept(this);
+  }
+
+  // The function a call is inlined from, or null when it is not the call of an inlinable function with its arity.
+  private Stmt.Function callee(Expr.Call call) {
+    if (!(call.callee instanceof Expr.Variable))
+      return null;
+
+    Expr.Variable variable = (Expr.Variable) call.callee;
+    Stmt.Function function = isGlobal(variable.binding) ? functions.get(variable.name.symbol) : null;
+
+    if (function == null || function.params.size() != call.arguments.size())
+      return null;
+
+    return function;
+  }
+
+  private boolean isInlinable(Stmt.Function function) {
+    Symbol name = function.name.symbol;
+
+    if (declarations.get(name) != 1 || assigned.contains(name))
+      return false;
+
+    if (function.upvalues != null && !function.upvalues.isEmpty())
+      return false;
+
+    for (Stmt.FunctionParameter param : function.params) {
+      if (param.initializer != null || param.isCaptured)
+        return false;
+    }
+
+    return size(function.body) <= MAX_SIZE;
+  }
+
+  // The number of nodes in statements that can be copied into a caller, or more than MAX_SIZE when any cannot.
+
+  private int size(List<Stmt> statements) {
+    int size = 0;
+
+    for (Stmt statement : statements) {
+      size += size(statement);
+    }
+
+    return size;
+  }
+
+  // Loops are left out; they carry hoisted values.
+  private int size(Stmt stmt) {
+    if (stmt instanceof Stmt.Block)
+      return 1 + size(((Stmt.Block) stmt).statements);
+
+    if (stmt instanceof Stmt.Expression)
+      return 1 + size(((Stmt.Expression) stmt).expression);
+
+    if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If) stmt;
+      int size = 1 + size(ifStmt.condition) + size(ifStmt.thenBranch);
+
+      return ifStmt.elseBranch != null ? size + size(ifStmt.elseBranch) : size;
+    }
+
+    if (stmt instanceof Stmt.Return) {
+      Expr value = ((Stmt.Return) stmt).value;
+      return value != null ? 1 + size(value) : 1;
+    }
+
+    if (stmt instanceof Stmt.Var) {
+      Stmt.Var var = (Stmt.Var) stmt;
+
+      if (var.isCaptured)
+        return MAX_SIZE + 1;
+
+      return var.initializer != null ? 1 + size(var.initializer) : 1;
+    }
+
+    return MAX_SIZE + 1;
+  }
+
+  private int size(Expr expr) {
+    if (expr instanceof Expr.Assign) {
+      Expr.Assign assign = (Expr.Assign) expr;
+      return isLocal(assign.binding) ? 1 + size(assign.value) : MAX_SIZE + 1;
+    }
+
+    if (expr instanceof Expr.Binary)
+      return 1 + size(((Expr.Binary) expr).left) + size(((Expr.Binary) expr).right);
+
+    if (expr instanceof Expr.Logical)
+      return 1 + size(((Expr.Logical) expr).left) + size(((Expr.Logical) expr).right);
+
+    if (expr instanceof Expr.Unary)
+      return 1 + size(((Expr.Unary) expr).right);
+
+    if (expr instanceof Expr.Grouping)
+      return size(((Expr.Grouping) expr).expression);
+
+    if (expr instanceof Expr.Literal)
+      return 1;
+
+    if (expr instanceof Expr.Variable) {
+      Binding binding = ((Expr.Variable) expr).binding;
+      return binding.isConstant || isLocal(binding) ? 1 : MAX_SIZE + 1;
+    }
+
+    return MAX_SIZE + 1;
+  }
+
+  // Copies keep the original tokens, so errors report the function's lines.
+
+  private List<Stmt> copy(List<Stmt> statements, int offset) {
+    List<Stmt> copies = new ArrayList<>(statements.size());
+
+    for (Stmt statement : statements) {
+      copies.add(copy(statement, offset));
+    }
+
+    return copies;
+  }
+
+  private Stmt copy(Stmt stmt, int offset) {
+    if (stmt instanceof Stmt.Block)
+      return new Stmt.Block(copy(((Stmt.Block) stmt).statements, offset));
+
+    if (stmt instanceof Stmt.Expression)
+      return new Stmt.Expression(copy(((Stmt.Expression) stmt).expression, offset));
+
+    if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If) stmt;
+
+      return new Stmt.If(copy(ifStmt.condition, offset), copy(ifStmt.thenBranch, offset),
+          ifStmt.elseBranch != null ? copy(ifStmt.elseBranch, offset) : null);
+    }
+
+    if (stmt instanceof Stmt.Return) {
+      Stmt.Return returnStmt = (Stmt.Return) stmt;
+      return new Stmt.Return(returnStmt.keyword, returnStmt.value != null ? copy(returnStmt.value, offset) : null);
+    }
+
+    Stmt.Var var = (Stmt.Var) stmt;
+    Stmt.Var copy = new Stmt.Var(var.name, var.initializer != null ? copy(var.initializer, offset) : null,
+        var.visibility, false, var.isConst);
+
+    copy.slot = var.slot + offset;
+    return copy;
+  }
+
+  private Expr copy(Expr expr, int offset) {
+    if (expr instanceof Expr.Assign) {
+      Expr.Assign assign = (Expr.Assign) expr;
+      Expr.Assign copy = new Expr.Assign(assign.name, copy(assign.value, offset));
+
+      copy.binding.slot = assign.binding.slot + offset;
+      return copy;
+    }
+
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      Expr.Binary copy = new Expr.Binary(copy(binary.left, offset), binary.operator, copy(binary.right, offset));
+
+      copy.isNumeric = binary.isNumeric;
+      return copy;
+    }
+
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical) expr;
+      return new Expr.Logical(copy(logical.left, offset), logical.operator, copy(logical.right, offset));
+    }
+
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      return new Expr.Unary(unary.operator, copy(unary.right, offset));
+    }
+
+    if (expr instanceof Expr.Grouping)
+      return new Expr.Grouping(copy(((Expr.Grouping) expr).expression, offset));
+
+    if (expr instanceof Expr.Literal)
+      return expr;
+
+    Expr.Variable variable = (Expr.Variable) expr;
+
+    if (variable.binding.isConstant)
+      return new Expr.Literal(variable.binding.constant);
+
+    Expr.Variable copy = new Expr.Variable(variable.name);
+    copy.binding.slot = variable.binding.slot + offset;
+    return copy;
+  }
+
+  private boolean isGlobal(Binding binding) {
+    return binding.slot < 0 && binding.upvalue < 0 && !binding.isConstant;
+  }
+
+  private boolean isLocal(Binding binding) {
+    return binding.slot >= 0 && binding.upvalue < 0 && !binding.isCaptured && !binding.isConstant;
+  }
+}
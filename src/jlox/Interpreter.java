@@ -1,17 +1,46 @@
 package jlox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
+class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Completion> {
+  static final String NUMBER_OPERAND = "Operand must be a number.";
+  static final String NUMBER_OPERANDS = "Operands must be numbers.";
+  static final String ADD_OPERANDS = "Operands must be two numbers or two strings.";
+  // deepest Lox call stack allowed unless configured otherwise
+  static final int MAX_DEPTH = 1 << 14;
+
   private Environment globals = new Environment();
   private Environment environment = null;
+  // call frames recycled by call depth, with the function running in each and the call that entered it
+  private Environment[] frames = new Environment[64];
+  private LoxFunction[] functions = new LoxFunction[64];
+  private Token[] callSites = new Token[64];
+  private int frameCount = 0;
+  private final int maxDepth;
+  // the call being made, recorded as the call site of the frame it pushes
+  private Token callSite = null;
+  // value of the last statement to complete with RETURN
+  private Object returnValue = null;
+  // call left by the last statement to complete with TAIL_CALL
+  private LoxFunction tailCallee = null;
+  private List<Object> tailArguments = null;
+  // dispatch on node kinds with a switch rather than through the visitors
+  private final boolean isSwitchDispatch;
 
   Interpreter() {
-    globals = globals.define("clock", new ILoxCallable() {
+    this(false, MAX_DEPTH);
+  }
+
+  Interpreter(boolean isSwitchDispatch, int maxDepth) {
+    this.isSwitchDispatch = isSwitchDispatch;
+    this.maxDepth = maxDepth;
+
+    globals = globals.define(Symbol.intern("clock"), new ILoxCallable() {
       @Override
       public int arity() {
         return 0;
@@ -19,6 +48,11 @@ class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
 
       @Override
       public Object call(Interpreter interpreter, List<Object> arguments) {
+        return call0(interpreter);
+      }
+
+      @Override
+      public Object call0(Interpreter interpreter) {
         return (double) System.currentTimeMillis() / 1000.0;
       }
 
@@ -27,7 +61,7 @@ class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
         return "<native fn>";
       }
     });
-    globals = globals.define("toString", new ILoxCallable() {
+    globals = globals.define(Symbol.intern("toString"), new ILoxCallable() {
       @Override
       public int arity() {
         return 1;
@@ -35,7 +69,12 @@ class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
 
       @Override
       public Object call(Interpreter interpreter, List<Object> arguments) {
-        return stringify(arguments.get(0));
+        return call1(interpreter, arguments.get(0));
+      }
+
+      @Override
+      public Object call1(Interpreter interpreter, Object a) {
+        return stringify(a);
       }
 
       @Override
@@ -43,7 +82,7 @@ class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
         return "<native fn>";
       }
     });
-    globals = globals.define("print", new ILoxCallable() {
+    globals = globals.define(Symbol.intern("print"), new ILoxCallable() {
       @Override
       public int arity() {
         return 1;
@@ -51,8 +90,11 @@ class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
 
       @Override
       public Object call(Interpreter interpreter, List<Object> arguments) {
-        Object arg = arguments.get(0);
+        return call1(interpreter, arguments.get(0));
+      }
 
+      @Override
+      public Object call1(Interpreter interpreter, Object arg) {
         System.out.println(stringify(arg));
 
         return null;
@@ -67,16 +109,33 @@ class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
     environment = globals;
   }
 
-  void interpret(List<Stmt> statements) {
+  void interpret(List<Stmt> statements, int frameSize) {
+    interpret(frame -> execute(statements), frameSize);
+  }
+
+  // Runs top-level code, walked by this interpreter or compiled by ClosureCompiler.
+  void interpret(ClosureCompiler.Executor program, int frameSize) {
+    // Top-level code gets one frame for all of its block locals; its global snapshot advances with each declaration.
+    environment = new Environment(globals, null, frameSize);
+
     try {
-      for (Stmt statement : statements) {
-        execute(statement);
-      }
+      program.execute(environment);
     } catch (RuntimeError error) {
       Lox.runtimeError(error);
+    } catch (StackOverflowError error) {
+      // A thread with too little stack for the configured depth still runs out of Java stack first. The error is
+      // reported at the last call made, or without a line when the script has made none.
+      Lox.runtimeError(new RuntimeError(callSite, "Stack overflow."));
+    } finally {
+      globals = environment.globals;
+      frameCount = 0;
     }
   }
 
+  Environment getGlobals() {
+    return globals;
+  }
+
   @Override
   public Object visitLiteralExpr(Expr.Literal expr) {
     return expr.value;
@@ -107,21 +166,22 @@ class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
 
     Object value = evaluate(expr.value);
 
-    LoxInstance instance = (LoxInstance) object;
+    setProperty(expr, (LoxInstance) object, value);
+    return value;
+  }
 
+  static void setProperty(Expr.Set expr, LoxInstance instance, Object value) {
     try {
       instance.set(expr.name, value);
     } catch (RuntimeError error) {
       throw new RuntimeError(error.token,
           "Property '" + error.token.lexeme + "' does not exist on type '" + instance.getKlass().name + "'.");
     }
-
-    return value;
   }
 
   @Override
   public Object visitThisExpr(Expr.This expr) {
-    return environment.get(expr.keyword);
+    return lookUpVariable(expr.keyword, expr.binding);
   }
 
   @Override
@@ -130,117 +190,223 @@ class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
   }
 
   @Override
-  public Void visitExpressionStmt(Stmt.Expression stmt) {
+  public Completion visitExpressionStmt(Stmt.Expression stmt) {
     evaluate(stmt.expression);
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitIfStmt(Stmt.If stmt) {
+  public Completion visitIfStmt(Stmt.If stmt) {
     if (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.thenBranch);
+      return execute(stmt.thenBranch);
     } else if (stmt.elseBranch != null) {
-      execute(stmt.elseBranch);
+      return execute(stmt.elseBranch);
     }
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitReturnStmt(Stmt.Return stmt) {
+  public Completion visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.isTailCall)
+      return tailCall((Expr.Call) stmt.value);
+
     Object value = null;
     if (stmt.value != null)
       value = evaluate(stmt.value);
 
-    throw new Return(value);
+    returnValue = value;
+    return Completion.RETURN;
   }
 
   @Override
-  public Void visitVarStmt(Stmt.Var stmt) {
+  public Completion visitVarStmt(Stmt.Var stmt) {
     Object value = null;
     if (stmt.initializer != null) {
       value = evaluate(stmt.initializer);
     }
 
-    environment = environment.define(stmt.name.lexeme, value);
-    return null;
+    // Instance frames already hold a cell for every field before the initializers run.
+    if (stmt.isClassMember) {
+      initialize(stmt, value);
+    } else {
+      define(stmt, value);
+    }
+
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitWhileStmt(Stmt.While stmt) {
+  public Completion visitWhileStmt(Stmt.While stmt) {
     while (isTruthy(evaluate(stmt.condition))) {
-      try {
-        execute(stmt.body);
+      Completion completion = execute(stmt.body);
 
-      } catch (Jump jump) {
-        if (jump.type == Jump.Type.BREAK) {
-          break;
-        } else if (jump.type == Jump.Type.CONTINUE) {
-          continue;
-        }
+      if (completion == Completion.BREAK)
+        break;
+      if (completion == Completion.RETURN || completion == Completion.TAIL_CALL)
+        return completion;
+
+      if (++stmt.backEdges >= JvmCompiler.LOOP_THRESHOLD) {
+        stmt.compiled = compileLoop(stmt.compiled, environment, stmt.condition, stmt.body, null);
+
+        if (stmt.compiled != null)
+          return runCompiledLoop(stmt.compiled, environment);
+
+        stmt.backEdges = Integer.MIN_VALUE;
       }
     }
 
-    return null;
+    return Completion.NORMAL;
   }
 
+  // A hoisted expression is only computed when it cannot fail, so its errors are still reported where it is used.
   @Override
-  public Void visitBreakStmt(Stmt.Break stmt) {
-    throw new Jump(Jump.Type.BREAK);
+  public Completion visitHoistStmt(Stmt.Hoist stmt) {
+    environment.assignAt(stmt.slot, isNumber(stmt.value) ? (Object) evaluateNumber(stmt.value, null, null) : null);
+    return Completion.NORMAL;
+  }
+
+  // Whether every operand of a numeric expression over locals and literals is a number.
+  private boolean isNumber(Expr expr) {
+    if (expr instanceof Expr.Binary)
+      return isNumber(((Expr.Binary) expr).left) && isNumber(((Expr.Binary) expr).right);
+    if (expr instanceof Expr.Unary)
+      return isNumber(((Expr.Unary) expr).right);
+    if (expr instanceof Expr.Grouping)
+      return isNumber(((Expr.Grouping) expr).expression);
+    if (expr instanceof Expr.Literal)
+      return ((Expr.Literal) expr).value instanceof Double;
+
+    return lookUpVariable(((Expr.Variable) expr).name, ((Expr.Variable) expr).binding) instanceof Double;
   }
 
   @Override
-  public Void visitContinueStmt(Stmt.Continue stmt) {
-    throw new Jump(Jump.Type.CONTINUE);
+  public Completion visitForStmt(Stmt.For stmt) {
+    if (stmt.initializer != null) {
+      execute(stmt.initializer);
+    }
+
+    while (stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
+      Completion completion = execute(stmt.body);
+
+      if (completion == Completion.BREAK)
+        break;
+      if (completion == Completion.RETURN || completion == Completion.TAIL_CALL)
+        return completion;
+
+      // Closures created in this iteration keep its cell; the next iteration continues in a copy.
+      if (stmt.capturedSlot >= 0) {
+        Cell cell = (Cell) environment.getAt(stmt.capturedSlot);
+        environment.assignAt(stmt.capturedSlot, new Cell(cell.value));
+      }
+
+      if (stmt.increment != null) {
+        evaluate(stmt.increment);
+      }
+
+      if (++stmt.backEdges >= JvmCompiler.LOOP_THRESHOLD) {
+        stmt.compiled = compileLoop(stmt.compiled, environment, stmt.condition, stmt.body, stmt.increment);
+
+        if (stmt.compiled != null)
+          return runCompiledLoop(stmt.compiled, environment);
+
+        stmt.backEdges = Integer.MIN_VALUE;
+      }
+    }
+
+    return Completion.NORMAL;
+  }
+
+  // A hot loop is compiled once for its frame's global snapshot and entered at its condition, from the iteration that
+  // made it hot and early on in every later run. Returns null when it cannot be compiled and stays interpreted.
+  static CompiledLoop compileLoop(CompiledLoop compiled, Environment frame, Expr condition, Stmt body,
+      Expr increment) {
+    if (compiled != null && compiled.globals == frame.globals)
+      return compiled;
+
+    return JvmCompiler.compile(condition, body, increment, frame.globals);
+  }
+
+  Completion runCompiledLoop(CompiledLoop compiled, Environment frame) {
+    Object result = compiled.run(this, frame);
+
+    if (result == CompiledLoop.COMPLETED)
+      return Completion.NORMAL;
+
+    returnValue = result;
+    return Completion.RETURN;
+  }
+
+  // The value left by the last statement that completed with RETURN, which is forgotten once read so it is not kept
+  // alive after the call.
+  Object returnValue() {
+    Object value = returnValue;
+    returnValue = null;
+    return value;
+  }
+
+  // Leaves a value for the function being returned from.
+  Completion returnWith(Object value) {
+    returnValue = value;
+    return Completion.RETURN;
+  }
+
+  // The function and arguments left by the last statement that completed with TAIL_CALL, also forgotten once read.
+  LoxFunction tailCallee() {
+    LoxFunction function = tailCallee;
+    tailCallee = null;
+    return function;
+  }
+
+  List<Object> tailArguments() {
+    List<Object> arguments = tailArguments;
+    tailArguments = null;
+    return arguments;
+  }
+
+  @Override
+  public Completion visitBreakStmt(Stmt.Break stmt) {
+    return Completion.BREAK;
+  }
+
+  @Override
+  public Completion visitContinueStmt(Stmt.Continue stmt) {
+    return Completion.CONTINUE;
   }
 
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
     Object value = evaluate(expr.value);
 
-    environment.assign(expr.name, value);
+    assignVariable(expr.name, expr.binding, value);
     return value;
   }
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
-    Object left = evaluate(expr.left);
-    Object right = evaluate(expr.right);
+    // Arithmetic stays in primitive doubles down the whole numeric subtree; only its result is boxed.
+    if (expr.isNumeric)
+      return arithmetic(expr);
 
     switch (expr.operator.type) {
       case GREATER:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left > (double) right;
       case GREATER_EQUAL:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left >= (double) right;
       case LESS:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left < (double) right;
       case LESS_EQUAL:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left <= (double) right;
-      case MINUS:
-        return (double) left - (double) right;
-      case PLUS:
-        if (left instanceof Double && right instanceof Double) {
-          return (double) left + (double) right;
-        }
+        return compare(expr);
+      default:
+        break;
+    }
 
-        if (left instanceof String && right instanceof String) {
-          return (String) left + (String) right;
-        }
+    Object left = evaluate(expr.left);
+    Object right = evaluate(expr.right);
 
-        throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+    switch (expr.operator.type) {
+      case PLUS:
+        return add(expr, left, right);
       case BANG_EQUAL:
         return !isEqual(left, right);
       case EQUAL_EQUAL:
         return isEqual(left, right);
-      case SLASH:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left / (double) right;
-      case STAR:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left * (double) right;
     }
 
     // Unreachable.
@@ -249,35 +415,140 @@ class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
 
   @Override
   public Object visitCallExpr(Expr.Call expr) {
-    Object callee = evaluate(expr.callee);
+    Object callee = callee(expr);
+
+    // A site calling the same callee every time skips the callable and arity checks.
+    boolean isCached = callee == expr.cachedCallee && callee != null;
+    ILoxCallable function = isCached ? expr.cachedCallee : callable(expr, callee);
+    List<Expr> arguments = expr.arguments;
+
+    // Calls with up to three arguments go through the fixed-arity entry points and build no argument list.
+    switch (arguments.size()) {
+      case 0:
+        prepareCall(expr, function, 0, isCached);
+        return function.call0(this);
+      case 1: {
+        Object a = evaluate(arguments.get(0));
+        prepareCall(expr, function, 1, isCached);
+        return function.call1(this, a);
+      }
+      case 2: {
+        Object a = evaluate(arguments.get(0));
+        Object b = evaluate(arguments.get(1));
+        prepareCall(expr, function, 2, isCached);
+        return function.call2(this, a, b);
+      }
+      case 3: {
+        Object a = evaluate(arguments.get(0));
+        Object b = evaluate(arguments.get(1));
+        Object c = evaluate(arguments.get(2));
+        prepareCall(expr, function, 3, isCached);
+        return function.call3(this, a, b, c);
+      }
+      default: {
+        List<Object> values = new ArrayList<>(arguments.size());
+        for (Expr argument : arguments) {
+          values.add(evaluate(argument));
+        }
 
-    if (!(callee instanceof ILoxCallable)) {
-      throw new RuntimeError(expr.paren, "Can only call functions, methods and classes.");
+        prepareCall(expr, function, values.size(), isCached);
+        return function.call(this, values);
+      }
     }
+  }
 
-    ILoxCallable function = (ILoxCallable) callee;
+  // A returned call of a Lox function is left for LoxFunction.call to make once the caller's frame is gone, so a chain
+  // of tail calls runs in constant Java stack and reuses the caller's frame.
+  private Completion tailCall(Expr.Call expr) {
+    Object callee = callee(expr);
+    boolean isCached = callee == expr.cachedCallee && callee != null;
+    ILoxCallable function = isCached ? expr.cachedCallee : callable(expr, callee);
 
-    List<Object> arguments = new ArrayList<>();
+    List<Object> arguments = new ArrayList<>(expr.arguments.size());
     for (Expr argument : expr.arguments) {
       arguments.add(evaluate(argument));
     }
 
-    if (arguments.size() != function.arity()) {
+    prepareCall(expr, function, arguments.size(), isCached);
+
+    if (!(function instanceof LoxFunction)) {
+      returnValue = function.call(this, arguments);
+      return Completion.RETURN;
+    }
+
+    leaveTailCall((LoxFunction) function, arguments);
+    return Completion.TAIL_CALL;
+  }
+
+  // Leaves a tail call for LoxFunction.call to make, returning the value that stands for it.
+  Object leaveTailCall(LoxFunction function, List<Object> arguments) {
+    tailCallee = function;
+    tailArguments = arguments;
+    return LoxFunction.TAIL_CALL;
+  }
+
+  private static ILoxCallable callable(Expr.Call expr, Object callee) {
+    if (!(callee instanceof ILoxCallable)) {
+      throw new RuntimeError(expr.paren, "Can only call functions, methods and classes.");
+    }
+
+    return (ILoxCallable) callee;
+  }
+
+  // Runs once the arguments are evaluated: checks the arity of a callee not cached at the site and caches it, then
+  // records the call for the frame it pushes.
+  private void prepareCall(Expr.Call expr, ILoxCallable function, int argumentCount, boolean isCached) {
+    if (!isCached)
+      checkArity(expr, function, argumentCount);
+
+    callSite = expr.paren;
+  }
+
+  private static void checkArity(Expr.Call expr, ILoxCallable function, int argumentCount) {
+    if (argumentCount != function.arity()) {
       throw new RuntimeError(expr.paren,
-          "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+          "Expected " + function.arity() + " arguments but got " + argumentCount + ".");
     }
 
-    return function.call(this, arguments);
+    if (!expr.isMegamorphic) {
+      expr.isMegamorphic = expr.cachedCallee != null;
+      expr.cachedCallee = expr.isMegamorphic ? null : function;
+    }
   }
 
   @Override
   public Object visitGetExpr(Expr.Get expr) {
-    Object object = evaluate(expr.object);
+    return readProperty(expr, evaluate(expr.object));
+  }
+
+  // The value of a property as a Get expression yields it: methods are bound anew on every read.
+  static Object readProperty(Expr.Get expr, Object object) {
+    Object value = getProperty(expr, object);
+
+    return value instanceof LoxFunction ? ((LoxFunction) value).rebind() : value;
+  }
+
+  // A method called where it is read is never seen by anything else, so the call uses the instance's bound method.
+  private Object callee(Expr.Call expr) {
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      return getProperty(get, evaluate(get.object));
+    }
+
+    return evaluate(expr.callee);
+  }
+
+  static Object getProperty(Expr.Get expr, Object object) {
     if (object instanceof LoxInstance) {
       LoxInstance instance = (LoxInstance) object;
 
-      LoxFunction method = instance.getKlass().findMethod(expr.name.lexeme);
-      LoxField field = instance.getKlass().findField(expr.name.lexeme);
+      // A site reading instances of one class goes straight to the slot; it was public when it was cached.
+      if (instance.getKlass() == expr.cachedClass) {
+        return instance.getAt(expr.cachedSlot);
+      }
+
+      LoxFunction method = instance.getKlass().findMethod(expr.name.symbol);
+      LoxField field = instance.getKlass().findField(expr.name.symbol);
 
       if (method != null && method.visibility == Visibility.PRIVATE
           || field != null && field.visibility == Visibility.PRIVATE) {
@@ -285,44 +556,57 @@ class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
             + "' is private and only accessible within class '" + instance.getKlass().name + "'.");
       }
 
+      Object value;
+
       try {
-        return instance.get(expr.name);
+        value = instance.get(expr.name);
       } catch (RuntimeError error) {
         throw new RuntimeError(error.token,
             "Property '" + error.token.lexeme + "' does not exist on type '" + instance.getKlass().name + "'.");
       }
+
+      if (!expr.isMegamorphic) {
+        expr.isMegamorphic = expr.cachedClass != null;
+        expr.cachedClass = expr.isMegamorphic ? null : instance.getKlass();
+        expr.cachedSlot = instance.getKlass().findSlot(expr.name.symbol);
+      }
+
+      return value;
     }
 
     throw new RuntimeError(expr.name, "Only instances have properties.");
   }
 
   @Override
-  public Void visitFunctionStmt(Stmt.Function stmt) {
-    LoxFunction function = new LoxFunction(stmt.name, stmt.params, stmt.body, environment, false, stmt.visibility);
-    environment = environment.define(stmt.name.lexeme, function);
-    return null;
+  public Completion visitFunctionStmt(Stmt.Function stmt) {
+    // Define the name before creating the closure so the function can refer to itself.
+    define(stmt, null);
+
+    LoxFunction function = new LoxFunction(stmt.name, stmt.params, stmt.body, stmt.frameSize, stmt.upvalues,
+        environment, false, stmt.visibility);
+
+    initialize(stmt, function);
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitFunctionParameter(Stmt.FunctionParameter stmt) {
-    return null;
+  public Completion visitFunctionParameter(Stmt.FunctionParameter stmt) {
+    return Completion.NORMAL;
   }
 
   @Override
   public Object visitFunctionExpr(Expr.Function expr) {
-    return new LoxFunction(expr.name, expr.params, expr.body, environment, false, Visibility.UNSPECIFIED);
+    return new LoxFunction(expr.name, expr.params, expr.body, expr.frameSize, expr.upvalues, environment, false,
+        Visibility.UNSPECIFIED);
   }
 
   @Override
   public Object visitUnaryExpr(Expr.Unary expr) {
-    Object right = evaluate(expr.right);
-
     switch (expr.operator.type) {
       case BANG:
-        return !isTruthy(right);
+        return !isTruthy(evaluate(expr.right));
       case MINUS:
-        checkNumberOperand(expr.operator, right);
-        return -(double) right;
+        return -evaluateNumber(expr.right, expr.operator, NUMBER_OPERAND);
     }
 
     // Unreachable.
@@ -331,91 +615,513 @@ class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
 
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-    return environment.get(expr.name);
+    return lookUpVariable(expr.name, expr.binding);
   }
 
   @Override
-  public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
-    return null;
+  public Object visitIncrementExpr(Expr.Increment expr) {
+    Object value = lookUpVariable(expr.variable.name, expr.variable.binding);
+
+    if (!(value instanceof Double))
+      throw new RuntimeError(expr.operator, operandsMessage(expr.operator));
+
+    Object result = (double) value + expr.delta;
+
+    assignVariable(expr.original.name, expr.original.binding, result);
+    return result;
+  }
+
+  @Override
+  public Object visitCompareExpr(Expr.Compare expr) {
+    Object left = lookUpVariable(expr.left.name, expr.left.binding);
+    double b = expr.constant;
+
+    if (expr.right != null) {
+      Object right = lookUpVariable(expr.right.name, expr.right.binding);
+
+      if (!(right instanceof Double))
+        throw new RuntimeError(expr.original.operator, NUMBER_OPERANDS);
+
+      b = (double) right;
+    }
+
+    if (!(left instanceof Double))
+      throw new RuntimeError(expr.original.operator, NUMBER_OPERANDS);
+
+    double a = (double) left;
+
+    switch (expr.original.operator.type) {
+      case GREATER:
+        return a > b;
+      case GREATER_EQUAL:
+        return a >= b;
+      case LESS:
+        return a < b;
+      default:
+        return a <= b;
+    }
   }
 
   @Override
-  public Void visitClassStmt(Stmt.Class stmt) {
-    environment = environment.define(stmt.name.lexeme, null);
+  public Object visitFieldIncrementExpr(Expr.FieldIncrement expr) {
+    Object object = lookUpVariable(expr.objectName, expr.objectBinding);
 
-    environment = new Environment(environment);
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(expr.original.name, "Only instances have fields.");
+    }
 
-    Map<String, LoxField> fields = new LinkedHashMap<>();
+    Object value = getProperty(expr.get, object);
+
+    if (!(value instanceof Double))
+      throw new RuntimeError(expr.operator, operandsMessage(expr.operator));
+
+    Object result = (double) value + expr.delta;
+
+    setProperty(expr.original, (LoxInstance) object, result);
+    return result;
+  }
+
+  @Override
+  public Object visitCallSumExpr(Expr.CallSum expr) {
+    Object left = call(expr.left);
+    Object right = call(expr.right);
+
+    return add(expr.original, left, right);
+  }
+
+  private Object call(Expr.CallSum.OffsetCall call) {
+    Object callee = lookUpVariable(call.callee.name, call.callee.binding);
+    boolean isCached = callee == call.call.cachedCallee && callee != null;
+    ILoxCallable function = isCached ? call.call.cachedCallee : callable(call.call, callee);
+    Object argument = lookUpVariable(call.argument.name, call.argument.binding);
+
+    if (!(argument instanceof Double))
+      throw new RuntimeError(call.operator, operandsMessage(call.operator));
+
+    Object a = (double) argument + call.delta;
+
+    prepareCall(call.call, function, 1, isCached);
+    return function.call1(this, a);
+  }
+
+  @Override
+  public Object visitInvariantExpr(Expr.Invariant expr) {
+    Object value = environment.getAt(expr.slot);
+
+    return value != null ? value : evaluate(expr.original);
+  }
+
+  // The copied body runs in the caller's frame, so the call pushes no frame and binds no arguments through a list.
+  @Override
+  public Object visitInlineExpr(Expr.Inline expr) {
+    List<Expr> arguments = expr.original.arguments;
+
+    for (int i = 0; i < arguments.size(); i++) {
+      environment.assignAt(expr.firstSlot + i, evaluate(arguments.get(i)));
+    }
+
+    return execute(expr.body) == Completion.RETURN ? returnValue() : null;
+  }
+
+  @Override
+  public Completion visitBlockStmt(Stmt.Block stmt) {
+    // Block locals are hoisted into the enclosing frame, so a block needs no environment of its own.
+    return execute(stmt.statements);
+  }
+
+  @Override
+  public Completion visitClassStmt(Stmt.Class stmt) {
+    define(stmt, null);
+
+    Map<Symbol, LoxField> fields = new LinkedHashMap<>();
+    Map<Symbol, Integer> slots = new HashMap<>();
 
     stmt.fields.forEach(field -> {
-      fields.put(field.name.lexeme, new LoxField(field));
+      fields.put(field.name.symbol, new LoxField(field));
+      slots.put(field.name.symbol, field.slot);
     });
 
-    Map<String, LoxFunction> methods = new HashMap<>();
+    Map<Symbol, LoxFunction> methods = new HashMap<>();
 
+    // Methods get their real closure once they are bound to an instance frame.
     stmt.methods.forEach(method -> {
-      LoxFunction function = new LoxFunction(method.name, method.params, method.body, environment,
-          method.name.lexeme.equals("init"), method.visibility);
+      LoxFunction function = new LoxFunction(method.name, method.params, method.body, method.frameSize,
+          method.upvalues, null, method.name.lexeme.equals("init"), method.visibility);
 
-      methods.put(method.name.lexeme, function);
+      methods.put(method.name.symbol, function);
+      slots.put(method.name.symbol, method.slot);
     });
 
-    LoxClass klass = new LoxClass(stmt.name.lexeme, fields, methods);
-
-    environment = environment.enclosing;
+    LoxClass klass = new LoxClass(stmt.name.lexeme, fields, methods, slots, stmt.frameSize, stmt.upvalues,
+        environment);
 
-    environment.assign(stmt.name, klass);
-    return null;
+    initialize(stmt, klass);
+    return Completion.NORMAL;
   }
 
   private Object evaluate(Expr expr) {
-    return expr.accept(this);
+    if (!isSwitchDispatch)
+      return expr.accept(this);
+
+    // One switch over a dense tag is a single call site HotSpot can optimize, unlike the megamorphic accept.
+    switch (expr.kind) {
+      case Expr.ASSIGN:
+        return visitAssignExpr((Expr.Assign) expr);
+      case Expr.BINARY:
+        return visitBinaryExpr((Expr.Binary) expr);
+      case Expr.CALL:
+        return visitCallExpr((Expr.Call) expr);
+      case Expr.GET:
+        return visitGetExpr((Expr.Get) expr);
+      case Expr.FUNCTION:
+        return visitFunctionExpr((Expr.Function) expr);
+      case Expr.GROUPING:
+        return visitGroupingExpr((Expr.Grouping) expr);
+      case Expr.LITERAL:
+        return visitLiteralExpr((Expr.Literal) expr);
+      case Expr.LOGICAL:
+        return visitLogicalExpr((Expr.Logical) expr);
+      case Expr.SET:
+        return visitSetExpr((Expr.Set) expr);
+      case Expr.THIS:
+        return visitThisExpr((Expr.This) expr);
+      case Expr.UNARY:
+        return visitUnaryExpr((Expr.Unary) expr);
+      case Expr.VARIABLE:
+        return visitVariableExpr((Expr.Variable) expr);
+      case Expr.INCREMENT:
+        return visitIncrementExpr((Expr.Increment) expr);
+      case Expr.COMPARE:
+        return visitCompareExpr((Expr.Compare) expr);
+      case Expr.FIELD_INCREMENT:
+        return visitFieldIncrementExpr((Expr.FieldIncrement) expr);
+      case Expr.CALL_SUM:
+        return visitCallSumExpr((Expr.CallSum) expr);
+      case Expr.INVARIANT:
+        return visitInvariantExpr((Expr.Invariant) expr);
+      case Expr.INLINE:
+        return visitInlineExpr((Expr.Inline) expr);
+      default:
+        // Unreachable.
+        return null;
+    }
+  }
+
+  private Completion execute(Stmt stmt) {
+    if (!isSwitchDispatch)
+      return stmt.accept(this);
+
+    switch (stmt.kind) {
+      case Stmt.BLOCK:
+        return visitBlockStmt((Stmt.Block) stmt);
+      case Stmt.CLASS:
+        return visitClassStmt((Stmt.Class) stmt);
+      case Stmt.BREAK:
+        return visitBreakStmt((Stmt.Break) stmt);
+      case Stmt.CONTINUE:
+        return visitContinueStmt((Stmt.Continue) stmt);
+      case Stmt.EXPRESSION:
+        return visitExpressionStmt((Stmt.Expression) stmt);
+      case Stmt.FOR:
+        return visitForStmt((Stmt.For) stmt);
+      case Stmt.FUNCTION:
+        return visitFunctionStmt((Stmt.Function) stmt);
+      case Stmt.RETURN:
+        return visitReturnStmt((Stmt.Return) stmt);
+      case Stmt.IF:
+        return visitIfStmt((Stmt.If) stmt);
+      case Stmt.VAR:
+        return visitVarStmt((Stmt.Var) stmt);
+      case Stmt.WHILE:
+        return visitWhileStmt((Stmt.While) stmt);
+      case Stmt.FUNCTION_PARAMETER:
+        return visitFunctionParameter((Stmt.FunctionParameter) stmt);
+      case Stmt.HOIST:
+        return visitHoistStmt((Stmt.Hoist) stmt);
+      default:
+        // Unreachable.
+        return Completion.NORMAL;
+    }
+  }
+
+  // Runs statements in order up to the first that does not complete normally.
+  private Completion execute(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      Completion completion = execute(statement);
+
+      if (completion != Completion.NORMAL)
+        return completion;
+    }
+
+    return Completion.NORMAL;
+  }
+
+  // Records the call about to be made for the frame it pushes; every call site sets it before calling.
+  void callFrom(Token paren) {
+    callSite = paren;
+  }
+
+  Environment pushFrame(LoxFunction function, Environment globals, Cell[] upvalues, int size) {
+    enter(function);
+
+    Environment frame = frames[frameCount - 1];
+
+    if (frame == null || frame.capacity() < size) {
+      frame = new Environment(globals, upvalues, size);
+      frames[frameCount - 1] = frame;
+    } else {
+      frame.reuse(globals, upvalues);
+    }
+
+    return frame;
+  }
+
+  void popFrame(int size) {
+    frames[frameCount - 1].clear(size);
+    leave();
+  }
+
+  // Enters a call on the Lox call stack without a frame, as code JvmCompiler compiled keeps its locals in the JVM's.
+  void enter(LoxFunction function) {
+    if (frameCount == maxDepth) {
+      RuntimeError error = new RuntimeError(callSite, "Stack overflow.");
+      error.trace = stackTrace();
+      throw error;
+    }
+
+    if (frameCount == frames.length) {
+      frames = Arrays.copyOf(frames, frameCount * 2);
+      functions = Arrays.copyOf(functions, frameCount * 2);
+      callSites = Arrays.copyOf(callSites, frameCount * 2);
+    }
+
+    functions[frameCount] = function;
+    callSites[frameCount] = callSite;
+    frameCount++;
+  }
+
+  void leave() {
+    functions[--frameCount] = null;
   }
 
-  private void execute(Stmt stmt) {
-    stmt.accept(this);
+  // The Lox call stack, innermost call first, each entry the line a frame is at and the function it runs.
+  private List<String> stackTrace() {
+    List<String> trace = new ArrayList<>(frameCount + 1);
+    Token at = callSite;
+
+    for (int i = frameCount - 1; i >= 0; i--) {
+      LoxFunction function = functions[i];
+
+      trace.add("[line " + at.line + "] in " + (function.isAnonymous() ? "fn" : function.name.lexeme) + "()");
+      at = callSites[i];
+    }
+
+    trace.add("[line " + at.line + "] in script");
+    return trace;
   }
 
-  void executeBlock(List<Stmt> statements, Environment environment) {
+  Completion executeBlock(List<Stmt> statements, Environment environment) {
     Environment previous = this.environment;
     try {
       this.environment = environment;
 
-      for (Stmt statement : statements) {
-        execute(statement);
-      }
+      return execute(statements);
     } finally {
       this.environment = previous;
     }
   }
 
-  Environment getEnvironment() {
-    return environment;
+  private Object lookUpVariable(Token name, Binding binding) {
+    switch (binding.access) {
+      case Binding.CONSTANT:
+        return binding.constant;
+      case Binding.LOCAL:
+        return environment.getAt(binding.slot);
+      case Binding.LOCAL_CELL:
+        return ((Cell) environment.getAt(binding.slot)).value;
+      case Binding.UPVALUE:
+        return environment.upvalues[binding.upvalue].value;
+      case Binding.GLOBAL:
+        return globalCell(name, binding, environment.globals).value;
+      default:
+        binding.access = access(binding);
+        return lookUpVariable(name, binding);
+    }
   }
 
-  Environment setEnvironment(Environment newEnv) {
-    Environment old = environment;
+  private void assignVariable(Token name, Binding binding, Object value) {
+    switch (binding.access) {
+      case Binding.LOCAL:
+        environment.assignAt(binding.slot, value);
+        break;
+      case Binding.LOCAL_CELL:
+        ((Cell) environment.getAt(binding.slot)).value = value;
+        break;
+      case Binding.UPVALUE:
+        environment.upvalues[binding.upvalue].value = value;
+        break;
+      case Binding.GLOBAL:
+        globalCell(name, binding, environment.globals).value = value;
+        break;
+      default:
+        binding.access = access(binding);
+        assignVariable(name, binding, value);
+        break;
+    }
+  }
 
-    environment = newEnv;
+  static int access(Binding binding) {
+    if (binding.isConstant)
+      return Binding.CONSTANT;
+    if (binding.slot >= 0)
+      return binding.isCaptured ? Binding.LOCAL_CELL : Binding.LOCAL;
+    if (binding.upvalue >= 0)
+      return Binding.UPVALUE;
+    return Binding.GLOBAL;
+  }
 
-    return old;
+  // Globals resolve to a cell once per snapshot version; redefinition creates a new version.
+  static Cell globalCell(Token name, Binding binding, Environment globals) {
+    if (binding.cellVersion != globals.version) {
+      binding.cell = globals.cellFor(name);
+      binding.cellVersion = globals.version;
+    }
+
+    return binding.cell;
   }
 
-  private void checkNumberOperand(Token operator, Object operand) {
-    if (operand instanceof Double)
-      return;
-    throw new RuntimeError(operator, "Operand must be a number.");
+  private void define(IDeclarator declarator, Object value) {
+    int slot = declarator.getSlot();
+
+    if (slot < 0) {
+      environment.globals = environment.globals.define(declarator.getName().symbol, value);
+    } else {
+      environment.assignAt(slot, declarator.isCaptured() ? new Cell(value) : value);
+    }
   }
 
-  private void checkNumberOperands(Token operator, Object left, Object right) {
-    if (left instanceof Double && right instanceof Double)
-      return;
+  // Sets a binding created by define() whose value could only be built after the name was in scope.
+  private void initialize(IDeclarator declarator, Object value) {
+    int slot = declarator.getSlot();
+
+    if (slot < 0) {
+      environment.globals.assign(declarator.getName(), value);
+    } else if (declarator.isCaptured()) {
+      ((Cell) environment.getAt(slot)).value = value;
+    } else {
+      environment.assignAt(slot, value);
+    }
+  }
+
+  // A '+' not known to be numeric specializes on the operand types it sees first; once they change it falls back to the
+  // generic checks for good.
+  private Object add(Expr.Binary expr, Object left, Object right) {
+    switch (expr.specialization) {
+      case Expr.Binary.ADD_NUMBERS:
+        if (left instanceof Double && right instanceof Double)
+          return (double) left + (double) right;
+        break;
+      case Expr.Binary.ADD_STRINGS:
+        if (left instanceof String && right instanceof String)
+          return (String) left + (String) right;
+        break;
+      case Expr.Binary.UNSPECIALIZED:
+        if (left instanceof Double && right instanceof Double) {
+          expr.specialization = Expr.Binary.ADD_NUMBERS;
+        } else if (left instanceof String && right instanceof String) {
+          expr.specialization = Expr.Binary.ADD_STRINGS;
+        } else {
+          expr.specialization = Expr.Binary.GENERIC;
+        }
+        return add(expr, left, right);
+      default:
+        break;
+    }
+
+    expr.specialization = Expr.Binary.GENERIC;
+
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left + (double) right;
+    }
+
+    if (left instanceof String && right instanceof String) {
+      return (String) left + (String) right;
+    }
+
+    throw new RuntimeError(expr.operator, ADD_OPERANDS);
+  }
+
+  private boolean compare(Expr.Binary expr) {
+    double left = evaluateNumber(expr.left, expr.operator, NUMBER_OPERANDS, expr.right);
+    double right = evaluateNumber(expr.right, expr.operator, NUMBER_OPERANDS);
+
+    switch (expr.operator.type) {
+      case GREATER:
+        return left > right;
+      case GREATER_EQUAL:
+        return left >= right;
+      case LESS:
+        return left < right;
+      default:
+        return left <= right;
+    }
+  }
+
+  private double arithmetic(Expr.Binary expr) {
+    String message = operandsMessage(expr.operator);
+    double left = evaluateNumber(expr.left, expr.operator, message, expr.right);
+    double right = evaluateNumber(expr.right, expr.operator, message);
+
+    switch (expr.operator.type) {
+      case MINUS:
+        return left - right;
+      case PLUS:
+        return left + right;
+      case SLASH:
+        return left / right;
+      case STAR:
+        return left * right;
+      default:
+        // Unreachable.
+        return 0;
+    }
+  }
+
+  private static String operandsMessage(Token operator) {
+    return operator.type == TokenType.PLUS ? ADD_OPERANDS : NUMBER_OPERANDS;
+  }
+
+  // Evaluates an operand that must be a number without boxing it when the operand is itself numeric arithmetic.
+  private double evaluateNumber(Expr expr, Token operator, String message) {
+    return evaluateNumber(expr, operator, message, null);
+  }
+
+  // The left operand of a binary operator is given the right one as next, which still runs before a bad left operand is
+  // reported.
+  private double evaluateNumber(Expr expr, Token operator, String message, Expr next) {
+    if (expr instanceof Expr.Binary && ((Expr.Binary) expr).isNumeric)
+      return arithmetic((Expr.Binary) expr);
+
+    if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.MINUS) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      return -evaluateNumber(unary.right, unary.operator, NUMBER_OPERAND);
+    }
+
+    if (expr instanceof Expr.Grouping)
+      return evaluateNumber(((Expr.Grouping) expr).expression, operator, message, next);
+
+    Object value = evaluate(expr);
+
+    if (value instanceof Double)
+      return (double) value;
+
+    if (next != null)
+      evaluateNumber(next, operator, message);
 
-    throw new RuntimeError(operator, "Operands must be numbers.");
+    throw new RuntimeError(operator, message);
   }
 
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null)
       return false;
     if (object instanceof Boolean)
@@ -423,7 +1129,7 @@ class Interpreter implements Expr.IVisitor<Object>, Stmt.IVisitor<Void> {
     return true;
   }
 
-  private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
     // nil is only equal to nil.
     if (a == null && b == null)
       return true;
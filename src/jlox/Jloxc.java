@@ -0,0 +1,151 @@
+package jlox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+// Compiles a script ahead of time into a runnable jar: the resolved and fused tree, serialized, next to the jlox
+// runtime classes. Launching the jar skips scanning, parsing and resolving; hot code still moves on to JvmCompiler.
+public class Jloxc {
+  // Classes only the front end and the other engines use; the jar runs its tree on the Interpreter and leaves them
+  // out.
+  private static final Set<String> COMPILE_ONLY = Set.of("Jloxc", "Scanner", "Parser", "Resolver", "ConstantFolder",
+      "Optimizer", "Inliner", "Fuser", "Compiler", "Chunk", "OpCode", "VM", "VMClass", "VMClosure", "VMFunction",
+      "VMInstance");
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2) {
+      System.out.println("Usage: jloxc script [jar]");
+      System.exit(64);
+    }
+
+    Path script = Paths.get(args[0]);
+    Path jar = Paths.get(args.length == 2 ? args[1] : jarName(script));
+
+    LoxProgram program = compile(new String(Files.readAllBytes(script), Charset.defaultCharset()));
+
+    // Indicate an error in the exit code.
+    if (program == null)
+      System.exit(65);
+
+    write(program, jar);
+  }
+
+  private static String jarName(Path script) {
+    String name = script.getFileName().toString();
+
+    if (name.endsWith(".lox")) {
+      name = name.substring(0, name.length() - ".lox".length());
+    }
+
+    return name + ".jar";
+  }
+
+  // Returns null when the script has a syntax or resolution error.
+  static LoxProgram compile(String source) {
+    Scanner scanner = new Scanner(source);
+    List<Token> tokens = scanner.scanTokens();
+    Parser parser = new Parser(tokens);
+    List<Stmt> statements = parser.parse();
+
+    if (Lox.hadError)
+      return null;
+
+    Resolver resolver = new Resolver();
+    int frameSize = resolver.resolve(statements);
+
+    if (Lox.hadError)
+      return null;
+
+    new ConstantFolder().fold(statements);
+    frameSize = new Optimizer().optimize(statements, frameSize);
+    frameSize = new Inliner().inline(statements, frameSize);
+    new Fuser().fuse(statements);
+    return new LoxProgram(statements, frameSize);
+  }
+
+  private static void write(LoxProgram program, Path jar) throws IOException {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, LoxProgram.class.getName());
+
+    try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+      copyRuntime(out);
+
+      out.putNextEntry(new JarEntry(LoxProgram.RESOURCE));
+      ObjectOutputStream objects = new ObjectOutputStream(out);
+      objects.writeObject(program);
+      objects.flush();
+      out.closeEntry();
+    }
+  }
+
+  // Copies the runtime classes of this package from wherever Jloxc itself was loaded, a class directory or a jar.
+  private static void copyRuntime(JarOutputStream out) throws IOException {
+    Path location;
+
+    try {
+      location = Paths.get(Jloxc.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    } catch (URISyntaxException error) {
+      throw new IOException(error);
+    }
+
+    if (Files.isDirectory(location)) {
+      try (Stream<Path> files = Files.list(location.resolve("jlox"))) {
+        for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+          String name = location.relativize(file).toString().replace('\\', '/');
+
+          if (isRuntime(name)) {
+            copy(out, name, Files.newInputStream(file));
+          }
+        }
+      }
+
+      return;
+    }
+
+    try (JarFile runtime = new JarFile(location.toFile())) {
+      Enumeration<JarEntry> entries = runtime.entries();
+
+      while (entries.hasMoreElements()) {
+        JarEntry entry = entries.nextElement();
+
+        if (isRuntime(entry.getName())) {
+          copy(out, entry.getName(), runtime.getInputStream(entry));
+        }
+      }
+    }
+  }
+
+  private static boolean isRuntime(String entry) {
+    if (!entry.startsWith("jlox/") || !entry.endsWith(".class"))
+      return false;
+
+    String name = entry.substring("jlox/".length(), entry.length() - ".class".length());
+    int nested = name.indexOf('$');
+
+    return !COMPILE_ONLY.contains(nested < 0 ? name : name.substring(0, nested));
+  }
+
+  private static void copy(JarOutputStream out, String name, InputStream in) throws IOException {
+    try (InputStream input = in) {
+      out.putNextEntry(new JarEntry(name));
+      input.transferTo(out);
+      out.closeEntry();
+    }
+  }
+}
@@ -0,0 +1,756 @@
+package jlox;
+
+import static jlox.ClassWriter.Opcodes.*;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// Compiles the body of a hot LoxFunction, or the rest of a hot loop, to a JVM class, so HotSpot can inline and optimize
+// it like Java code. Only self-contained code is compiled: parameters and locals no closure captures, globals,
+// arithmetic, control flow and calls. Anything else (closures, classes, properties) stays in the Interpreter.
+class JvmCompiler implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
+  // calls after which LoxFunction tries to compile its body
+  static final int THRESHOLD = 1000;
+  // back-edges after which the Interpreter tries to compile a loop and continue it in compiled code
+  static final int LOOP_THRESHOLD = 10000;
+
+  private static final String OBJECT = "java/lang/Object";
+  // owner of the helpers generated code calls into
+  private static final String BASE = "jlox/CompiledFunction";
+  private static final String LOOP_BASE = "jlox/CompiledLoop";
+  private static final String TOKEN = "Ljlox/Token;";
+  private static final String INVOKE = "(Ljlox/Interpreter;Ljava/util/List;)Ljava/lang/Object;";
+  private static final String RUN = "(Ljlox/Interpreter;Ljlox/Environment;)Ljava/lang/Object;";
+  // JVM locals: this, the interpreter and the argument list or frame, then the frame's slots
+  private static final int FIRST_SLOT = 3;
+
+  private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+  private static int classes = 0;
+
+  // Thrown on the first construct the compiler does not handle.
+  private static class Unsupported extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Unsupported() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static class Loop {
+    final Loop enclosing;
+    final int start;
+    final List<Integer> breaks = new ArrayList<>();
+    final List<Integer> continues = new ArrayList<>();
+
+    Loop(Loop enclosing, int start) {
+      this.enclosing = enclosing;
+      this.start = start;
+    }
+  }
+
+  private final Environment globals;
+  private final String superName;
+  private final ClassWriter writer;
+  private final ClassWriter.Code code;
+  private final List<Object> constants = new ArrayList<>();
+  // frame slots the code keeps in JVM locals
+  private final BitSet slots = new BitSet();
+  private Loop loop = null;
+
+  private JvmCompiler(String className, String superName, String method, String descriptor, Environment globals) {
+    this.globals = globals;
+    this.superName = superName;
+    this.writer = new ClassWriter(className, superName);
+    this.code = writer.method(0, method, descriptor, 0);
+  }
+
+  // Returns null when the body cannot be compiled; the function then keeps running in the Interpreter.
+  static CompiledFunction compile(LoxFunction function, Environment globals) {
+    String name = function.isAnonymous() ? "anonymous" : function.name.lexeme;
+    String className = "jlox/Compiled$" + name + "$" + ++classes;
+
+    try {
+      JvmCompiler compiler = new JvmCompiler(className, BASE, "invoke", INVOKE, globals);
+      return (CompiledFunction) compiler.load(compiler.compile(function));
+    } catch (Unsupported error) {
+      return null;
+    }
+  }
+
+  // Compiles a loop from its condition on, for a frame whose globals are those given. Returns null when the loop
+  // cannot be compiled; it then keeps running in the Interpreter.
+  static CompiledLoop compile(Expr condition, Stmt body, Expr increment, Environment globals) {
+    String className = "jlox/Compiled$loop$" + ++classes;
+
+    try {
+      JvmCompiler compiler = new JvmCompiler(className, LOOP_BASE, "run", RUN, globals);
+      CompiledLoop loop = (CompiledLoop) compiler.load(compiler.compile(condition, body, increment));
+
+      loop.globals = globals;
+      return loop;
+    } catch (Unsupported error) {
+      return null;
+    }
+  }
+
+  private byte[] compile(LoxFunction function) {
+    for (int slot = 0; slot < function.frameSize; slot++) {
+      if (slot < function.params.size()) {
+        if (function.params.get(slot).isCaptured)
+          throw new Unsupported();
+
+        code.op1(ALOAD, 2, 1);
+        pushInt(slot);
+        code.invokeInterface(writer.interfaceMethodRef("java/util/List", "get", "(I)Ljava/lang/Object;"), 1, -1);
+      } else {
+        code.op(ACONST_NULL, 1);
+      }
+
+      storeSlot(slot);
+    }
+
+    for (Stmt statement : function.body) {
+      compile(statement);
+    }
+
+    code.op(ACONST_NULL, 1);
+    code.op(ARETURN, -1);
+    return finish();
+  }
+
+  private byte[] compile(Expr condition, Stmt body, Expr increment) {
+    // Which slots the loop uses is only known once it is compiled, so the code that loads them comes last.
+    int prologue = code.jump(GOTO, 0);
+    int start = code.length();
+
+    loop(condition, body, increment);
+
+    // Hand the slots back to the Interpreter, which continues after the loop.
+    for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+      code.op1(ALOAD, 2, 1);
+      pushInt(slot);
+      code.op1(ALOAD, FIRST_SLOT + slot, 1);
+      code.op2(INVOKEVIRTUAL, writer.methodRef("jlox/Environment", "assignAt", "(ILjava/lang/Object;)V"), -3);
+    }
+
+    code.op2(GETSTATIC, writer.fieldRef(LOOP_BASE, "COMPLETED", "Ljava/lang/Object;"), 1);
+    code.op(ARETURN, -1);
+
+    code.patch(prologue);
+
+    for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+      code.op1(ALOAD, 2, 1);
+      pushInt(slot);
+      code.op2(INVOKEVIRTUAL, writer.methodRef("jlox/Environment", "getAt", "(I)Ljava/lang/Object;"), -1);
+      code.op1(ASTORE, FIRST_SLOT + slot, -1);
+    }
+
+    code.jumpTo(GOTO, start, 0);
+    return finish();
+  }
+
+  private byte[] finish() {
+    // Branch offsets and local indices must fit the short instruction forms.
+    code.maxLocals = FIRST_SLOT + slots.length();
+
+    if (code.maxLocals > 255 || code.length() > Short.MAX_VALUE)
+      throw new Unsupported();
+
+    ClassWriter.Code constructor = writer.method(ClassWriter.ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", 2);
+    constructor.op1(ALOAD, 0, 1);
+    constructor.op1(ALOAD, 1, 1);
+    constructor.op2(INVOKESPECIAL, writer.methodRef(superName, "<init>", "([Ljava/lang/Object;)V"), -2);
+    constructor.op(RETURN, 0);
+
+    return writer.toByteArray();
+  }
+
+  // Compiled code is loaded as a hidden class, which the JVM unloads once its function or loop is dropped or compiled
+  // again, so recompiling does not keep adding classes.
+  private Object load(byte[] bytes) {
+    try {
+      Class<?> compiled = lookup.defineHiddenClass(bytes, true).lookupClass();
+
+      return compiled.getDeclaredConstructor(Object[].class).newInstance((Object) constants.toArray());
+    } catch (ReflectiveOperationException error) {
+      // Generated classes always have this constructor, so not reaching it is a bug in the compiler.
+      throw new IllegalStateException(error);
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    if (loop == null)
+      throw new Unsupported();
+
+    loop.breaks.add(code.jump(GOTO, 0));
+    return null;
+  }
+
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    if (loop == null)
+      throw new Unsupported();
+
+    loop.continues.add(code.jump(GOTO, 0));
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    code.op(POP, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    }
+
+    loop(stmt.condition, stmt.body, stmt.increment);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitFunctionParameter(Stmt.FunctionParameter stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    // Tail calls are left to the Interpreter, which makes them without growing the Java stack.
+    if (stmt.isTailCall)
+      throw new Unsupported();
+
+    if (stmt.value != null) {
+      compile(stmt.value);
+    } else {
+      code.op(ACONST_NULL, 1);
+    }
+
+    code.op(ARETURN, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    condition(stmt.condition);
+    int elseJump = code.jump(IFEQ, -1);
+
+    compile(stmt.thenBranch);
+
+    if (stmt.elseBranch == null) {
+      code.patch(elseJump);
+      return null;
+    }
+
+    int endJump = code.jump(GOTO, 0);
+    code.patch(elseJump);
+    compile(stmt.elseBranch);
+    code.patch(endJump);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.isCaptured || stmt.slot < 0)
+      throw new Unsupported();
+
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      code.op(ACONST_NULL, 1);
+    }
+
+    storeSlot(stmt.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    loop(stmt.condition, stmt.body, null);
+    return null;
+  }
+
+  @Override
+  public Void visitHoistStmt(Stmt.Hoist stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+    code.op(DUP, 1);
+
+    if (isLocal(expr.binding)) {
+      storeSlot(expr.binding.slot);
+    } else {
+      loadConstant(globalCell(expr.name), "jlox/Cell");
+      code.op(SWAP, 0);
+      code.op2(PUTFIELD, writer.fieldRef("jlox/Cell", "value", "Ljava/lang/Object;"), -2);
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    if (expr.isNumeric) {
+      number(expr, expr.operator, Interpreter.NUMBER_OPERANDS);
+      box("java/lang/Double", "(D)Ljava/lang/Double;", -1);
+      return null;
+    }
+
+    switch (expr.operator.type) {
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        condition(expr);
+        box("java/lang/Boolean", "(Z)Ljava/lang/Boolean;", 0);
+        return null;
+      case EQUAL_EQUAL:
+      case BANG_EQUAL:
+        compile(expr.left);
+        compile(expr.right);
+        code.op2(INVOKESTATIC, writer.methodRef("jlox/Interpreter", "isEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Z"),
+            -1);
+
+        if (expr.operator.type == TokenType.BANG_EQUAL) {
+          code.op(ICONST_1, 1);
+          code.op(IXOR, -1);
+        }
+
+        box("java/lang/Boolean", "(Z)Ljava/lang/Boolean;", 0);
+        return null;
+      case PLUS:
+        compile(expr.left);
+        compile(expr.right);
+        loadConstant(expr.operator, "jlox/Token");
+        code.op2(INVOKESTATIC,
+            writer.methodRef(BASE, "add", "(Ljava/lang/Object;Ljava/lang/Object;" + TOKEN + ")Ljava/lang/Object;"), -2);
+        return null;
+      default:
+        throw new Unsupported();
+    }
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    compile(expr.callee);
+    loadConstant(expr.paren, "jlox/Token");
+    code.op2(INVOKESTATIC, writer.methodRef(BASE, "callable", "(Ljava/lang/Object;" + TOKEN + ")Ljlox/ILoxCallable;"),
+        -1);
+
+    code.op1(ALOAD, 1, 1);
+    int count = expr.arguments.size();
+
+    // Calls with up to three arguments pass them as they are to the fixed-arity helpers.
+    if (count <= 3) {
+      for (Expr argument : expr.arguments) {
+        compile(argument);
+      }
+
+      loadConstant(expr.paren, "jlox/Token");
+      code.op2(INVOKESTATIC, writer.methodRef(BASE, "call" + count,
+          "(Ljlox/ILoxCallable;Ljlox/Interpreter;" + "Ljava/lang/Object;".repeat(count) + TOKEN + ")Ljava/lang/Object;"),
+          -(count + 2));
+      return null;
+    }
+
+    pushInt(count);
+    code.op2(ANEWARRAY, writer.classRef(OBJECT), 0);
+
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      code.op(DUP, 1);
+      pushInt(i);
+      compile(expr.arguments.get(i));
+      code.op(AASTORE, -3);
+    }
+
+    loadConstant(expr.paren, "jlox/Token");
+    code.op2(INVOKESTATIC, writer.methodRef(BASE, "call",
+        "(Ljlox/ILoxCallable;Ljlox/Interpreter;[Ljava/lang/Object;" + TOKEN + ")Ljava/lang/Object;"), -3);
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitFunctionExpr(Expr.Function expr) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    literal(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+    code.op(DUP, 1);
+    isTruthy();
+
+    int end = code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, -1);
+
+    code.op(POP, -1);
+    compile(expr.right);
+    code.patch(end);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    if (expr.operator.type == TokenType.MINUS) {
+      number(expr, expr.operator, Interpreter.NUMBER_OPERAND);
+      box("java/lang/Double", "(D)Ljava/lang/Double;", -1);
+    } else {
+      condition(expr);
+      box("java/lang/Boolean", "(Z)Ljava/lang/Boolean;", 0);
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    Binding binding = expr.binding;
+
+    if (binding.isConstant) {
+      literal(binding.constant);
+    } else if (isLocal(binding)) {
+      loadSlot(binding.slot);
+    } else {
+      loadConstant(globalCell(expr.name), "jlox/Cell");
+      code.op2(GETFIELD, writer.fieldRef("jlox/Cell", "value", "Ljava/lang/Object;"), 0);
+    }
+
+    return null;
+  }
+
+  // Fused nodes compile as the nodes they replace.
+  @Override
+  public Void visitIncrementExpr(Expr.Increment expr) {
+    compile(expr.original);
+    return null;
+  }
+
+  @Override
+  public Void visitCompareExpr(Expr.Compare expr) {
+    compile(expr.original);
+    return null;
+  }
+
+  @Override
+  public Void visitFieldIncrementExpr(Expr.FieldIncrement expr) {
+    compile(expr.original);
+    return null;
+  }
+
+  @Override
+  public Void visitCallSumExpr(Expr.CallSum expr) {
+    compile(expr.original);
+    return null;
+  }
+
+  // Hoisted expressions compile where they are used, as the values HotSpot hoists itself.
+
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    compile(expr.original);
+    return null;
+  }
+
+  // Inlined calls compile as the calls they replace, leaving inlining to HotSpot.
+
+  @Override
+  public Void visitInlineExpr(Expr.Inline expr) {
+    compile(expr.original);
+    return null;
+  }
+
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void loop(Expr condition, Stmt body, Expr increment) {
+    loop = new Loop(loop, code.length());
+    int exit = -1;
+
+    if (condition != null) {
+      condition(condition);
+      exit = code.jump(IFEQ, -1);
+    }
+
+    compile(body);
+
+    loop.continues.forEach(code::patch);
+
+    if (increment != null) {
+      compile(increment);
+      code.op(POP, -1);
+    }
+
+    code.jumpTo(GOTO, loop.start, 0);
+
+    if (exit >= 0)
+      code.patch(exit);
+    endLoop();
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  // Pushes the value of a numeric operand as a primitive double, unboxing only at the leaves.
+  private void number(Expr expr, Token operator, String message) {
+    if (expr instanceof Expr.Invariant) {
+      number(((Expr.Invariant) expr).original, operator, message);
+    } else if (expr instanceof Expr.Binary && ((Expr.Binary) expr).isNumeric) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      String operandMessage = binary.operator.type == TokenType.PLUS ? Interpreter.ADD_OPERANDS
+          : Interpreter.NUMBER_OPERANDS;
+
+      numbers(binary, operandMessage);
+
+      switch (binary.operator.type) {
+        case MINUS:
+          code.op(DSUB, -2);
+          break;
+        case PLUS:
+          code.op(DADD, -2);
+          break;
+        case SLASH:
+          code.op(DDIV, -2);
+          break;
+        default:
+          code.op(DMUL, -2);
+          break;
+      }
+    } else if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.MINUS) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      number(unary.right, unary.operator, Interpreter.NUMBER_OPERAND);
+      code.op(DNEG, 0);
+    } else if (expr instanceof Expr.Grouping) {
+      number(((Expr.Grouping) expr).expression, operator, message);
+    } else if (expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double) {
+      code.op2(LDC2_W, writer.doubleConstant((double) ((Expr.Literal) expr).value), 2);
+    } else {
+      compile(expr);
+      unbox(operator, message);
+    }
+  }
+
+  // Pushes the operands of a numeric operator as doubles. A left operand that is not arithmetic itself is unboxed only
+  // once the right one has run, as the Interpreter checks it.
+  private void numbers(Expr.Binary binary, String message) {
+    Expr left = binary.left;
+
+    while (left instanceof Expr.Grouping || left instanceof Expr.Invariant) {
+      left = left instanceof Expr.Grouping ? ((Expr.Grouping) left).expression : ((Expr.Invariant) left).original;
+    }
+
+    if (left instanceof Expr.Binary && ((Expr.Binary) left).isNumeric
+        || left instanceof Expr.Unary && ((Expr.Unary) left).operator.type == TokenType.MINUS
+        || left instanceof Expr.Literal && ((Expr.Literal) left).value instanceof Double) {
+      number(left, binary.operator, message);
+      number(binary.right, binary.operator, message);
+      return;
+    }
+
+    compile(left);
+    number(binary.right, binary.operator, message);
+    // move the right operand under the boxed left one to unbox it, then swap the two doubles back into order
+    code.op(DUP2_X1, 2);
+    code.op(POP2, -2);
+    unbox(binary.operator, message);
+    code.op(DUP2_X2, 2);
+    code.op(POP2, -2);
+  }
+
+  private void unbox(Token operator, String message) {
+    loadConstant(operator, "jlox/Token");
+    code.op2(LDC_W, writer.string(message), 1);
+    code.op2(INVOKESTATIC,
+        writer.methodRef(BASE, "number", "(Ljava/lang/Object;" + TOKEN + "Ljava/lang/String;)D"), -1);
+  }
+
+  // Pushes the truthiness of an expression as an int, comparing numbers without boxing the result.
+  private void condition(Expr expr) {
+    if (expr instanceof Expr.Compare) {
+      condition(((Expr.Compare) expr).original);
+      return;
+    }
+
+    if (expr instanceof Expr.Grouping) {
+      condition(((Expr.Grouping) expr).expression);
+      return;
+    }
+
+    if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.BANG) {
+      condition(((Expr.Unary) expr).right);
+      code.op(ICONST_1, 1);
+      code.op(IXOR, -1);
+      return;
+    }
+
+    if (!(expr instanceof Expr.Binary)) {
+      compile(expr);
+      isTruthy();
+      return;
+    }
+
+    Expr.Binary binary = (Expr.Binary) expr;
+    int compare;
+    int jumpIfFalse;
+
+    switch (binary.operator.type) {
+      case GREATER:
+        compare = DCMPL;
+        jumpIfFalse = IFLE;
+        break;
+      case GREATER_EQUAL:
+        compare = DCMPL;
+        jumpIfFalse = IFLT;
+        break;
+      case LESS:
+        compare = DCMPG;
+        jumpIfFalse = IFGE;
+        break;
+      case LESS_EQUAL:
+        compare = DCMPG;
+        jumpIfFalse = IFGT;
+        break;
+      default:
+        compile(expr);
+        isTruthy();
+        return;
+    }
+
+    numbers(binary, Interpreter.NUMBER_OPERANDS);
+    code.op(compare, -3);
+
+    int isFalse = code.jump(jumpIfFalse, -1);
+    code.op(ICONST_1, 1);
+    int end = code.jump(GOTO, 0);
+    code.patch(isFalse);
+    // the other branch already counted the pushed result
+    code.op(ICONST_0, 0);
+    code.patch(end);
+  }
+
+  private void isTruthy() {
+    code.op2(INVOKESTATIC, writer.methodRef("jlox/Interpreter", "isTruthy", "(Ljava/lang/Object;)Z"), 0);
+  }
+
+  private void box(String owner, String descriptor, int stackEffect) {
+    code.op2(INVOKESTATIC, writer.methodRef(owner, "valueOf", descriptor), stackEffect);
+  }
+
+  private void literal(Object value) {
+    if (value == null) {
+      code.op(ACONST_NULL, 1);
+    } else if (value instanceof Boolean) {
+      String field = (boolean) value ? "TRUE" : "FALSE";
+      code.op2(GETSTATIC, writer.fieldRef("java/lang/Boolean", field, "Ljava/lang/Boolean;"), 1);
+    } else if (value instanceof String) {
+      code.op2(LDC_W, writer.string((String) value), 1);
+    } else {
+      loadConstant(value, "java/lang/Double");
+    }
+  }
+
+  private void loadConstant(Object value, String type) {
+    constants.add(value);
+
+    code.op1(ALOAD, 0, 1);
+    code.op2(GETFIELD, writer.fieldRef(superName, "constants", "[Ljava/lang/Object;"), 0);
+    pushInt(constants.size() - 1);
+    code.op(AALOAD, -1);
+    code.op2(CHECKCAST, writer.classRef(type), 0);
+  }
+
+  private void pushInt(int value) {
+    if (value <= 5) {
+      code.op(ICONST_0 + value, 1);
+    } else if (value <= Byte.MAX_VALUE) {
+      code.op1(BIPUSH, value, 1);
+    } else {
+      code.op2(SIPUSH, value, 1);
+    }
+  }
+
+  private void loadSlot(int slot) {
+    slots.set(slot);
+    code.op1(ALOAD, FIRST_SLOT + slot, 1);
+  }
+
+  private void storeSlot(int slot) {
+    slots.set(slot);
+    code.op1(ASTORE, FIRST_SLOT + slot, -1);
+  }
+
+  private boolean isLocal(Binding binding) {
+    if (binding.upvalue >= 0 || binding.slot >= 0 && binding.isCaptured)
+      throw new Unsupported();
+
+    return binding.slot >= 0;
+  }
+
+  // The function's or loop frame's global snapshot never changes, so global cells are resolved once, here.
+  private Cell globalCell(Token name) {
+    try {
+      return globals.cellFor(name);
+    } catch (RuntimeError error) {
+      throw new Unsupported();
+    }
+  }
+
+  private void endLoop() {
+    loop.breaks.forEach(code::patch);
+    loop = loop.enclosing;
+  }
+}
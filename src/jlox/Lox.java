@@ -6,22 +6,100 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Lox {
-  private static final Interpreter interpreter = new Interpreter();
+  private static Interpreter interpreter = null;
+  private static VM vm = null;
+  private static boolean useClosures = false;
+  // prompt lines are resolved one at a time, so a later line may assign a function an earlier one inlined
+  private static boolean isPrompt = false;
+  // bytes of Java stack reserved for each Lox call
+  private static final int STACK_PER_CALL = 4096;
+  // deepest Lox call stack --max-depth may ask for, which keeps the thread's stack to 256 MiB
+  private static final int DEPTH_LIMIT = 1 << 16;
   static boolean hadError = false;
   static boolean hadRuntimeError = false;
 
-  public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
+  public static void main(String[] args) throws IOException, InterruptedException {
+    List<String> arguments = new ArrayList<>(Arrays.asList(args));
+
+    // --max-depth=N bounds the depth of the Lox call stack
+    int maxDepth = maxDepth(arguments);
+    // --switch has the tree-walking interpreter dispatch on node kinds instead of through visitors
+    boolean useSwitch = arguments.remove("--switch");
+    // --vm runs scripts on the bytecode VM instead of the tree-walking interpreter
+    boolean useVM = arguments.remove("--vm");
+    // --closures compiles scripts into a tree of Java closures before running them
+    useClosures = arguments.remove("--closures");
+
+    // Only the tree-walking interpreter dispatches with --switch, so it cannot go with another engine.
+    if (maxDepth < 1 || arguments.size() > 1 || useVM && useClosures || useSwitch && (useVM || useClosures)) {
+      System.out.println("Usage: jlox [--max-depth=N] [--switch | --vm | --closures] [script]");
+      System.out.println("N is at most " + DEPTH_LIMIT + ".");
       System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
-    } else {
-      runPrompt();
     }
+
+    interpreter = new Interpreter(useSwitch, maxDepth);
+
+    if (useVM) {
+      vm = new VM(interpreter, maxDepth);
+    }
+
+    IOException[] failure = new IOException[1];
+
+    runWithStack(maxDepth, () -> {
+      try {
+        if (arguments.size() == 1) {
+          runFile(arguments.get(0));
+        } else {
+          runPrompt();
+        }
+      } catch (IOException error) {
+        failure[0] = error;
+      }
+    });
+
+    if (failure[0] != null)
+      throw failure[0];
+  }
+
+  // Each Lox call nests several Java frames in the interpreters, so scripts run on a thread with a stack deep enough
+  // for the Lox call stack to reach its limit before the Java one does.
+  static void runWithStack(int maxDepth, Runnable script) throws InterruptedException {
+    Thread thread;
+
+    try {
+      thread = new Thread(null, script, "jlox", (long) maxDepth * STACK_PER_CALL);
+      thread.start();
+    } catch (OutOfMemoryError error) {
+      System.err.println(
+          "Cannot reserve the Java stack for a call depth of " + maxDepth + "; use a smaller --max-depth.");
+      System.exit(71);
+      return;
+    }
+
+    thread.join();
+  }
+
+  // Returns -1 for a depth that is not a positive number up to the limit.
+  private static int maxDepth(List<String> arguments) {
+    for (String argument : arguments) {
+      if (argument.startsWith("--max-depth=")) {
+        arguments.remove(argument);
+
+        try {
+          int maxDepth = Integer.parseInt(argument.substring("--max-depth=".length()));
+          return maxDepth < 1 || maxDepth > DEPTH_LIMIT ? -1 : maxDepth;
+        } catch (NumberFormatException error) {
+          return -1;
+        }
+      }
+    }
+
+    return Interpreter.MAX_DEPTH;
   }
 
   private static void runFile(String path) throws IOException {
@@ -38,6 +116,7 @@ public class Lox {
   private static void runPrompt() throws IOException {
     InputStreamReader input = new InputStreamReader(System.in);
     BufferedReader reader = new BufferedReader(input);
+    isPrompt = true;
 
     for (;;) {
       System.out.print("> ");
@@ -57,12 +136,35 @@ public class Lox {
       return;
 
     Resolver resolver = new Resolver();
-    resolver.resolve(statements);
+    int frameSize = resolver.resolve(statements);
 
     if (hadError)
       return;
 
-    interpreter.interpret(statements);
+    new ConstantFolder().fold(statements);
+
+    if (useClosures) {
+      interpreter.interpret(new ClosureCompiler(interpreter).compile(statements), frameSize);
+      return;
+    }
+
+    if (vm == null) {
+      frameSize = new Optimizer().optimize(statements, frameSize);
+
+      if (!isPrompt)
+        frameSize = new Inliner().inline(statements, frameSize);
+
+      new Fuser().fuse(statements);
+      interpreter.interpret(statements, frameSize);
+      return;
+    }
+
+    VMFunction script = new Compiler().compile(statements, frameSize);
+
+    if (hadError)
+      return;
+
+    vm.interpret(script);
   }
 
   static void error(int line, String message) {
@@ -70,10 +172,33 @@ public class Lox {
   }
 
   static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+    if (error.token == null) {
+      System.err.println(error.getMessage());
+    } else if (error.trace == null) {
+      System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+    } else {
+      System.err.println(error.getMessage());
+      printTrace(error.trace);
+    }
+
     hadRuntimeError = true;
   }
 
+  // Runs of the same entry, as deep recursion leaves, are printed once with their count.
+  private static void printTrace(List<String> trace) {
+    for (int i = 0; i < trace.size();) {
+      int run = 1;
+      while (i + run < trace.size() && trace.get(i + run).equals(trace.get(i)))
+        run++;
+
+      System.err.println(trace.get(i));
+      if (run > 1)
+        System.err.println("[" + (run - 1) + " more]");
+
+      i += run;
+    }
+  }
+
   private static void report(int line, String where, String message) {
     System.err.println("[line " + line + "] Error" + where + ": " + message);
     hadError = true;
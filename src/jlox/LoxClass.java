@@ -4,17 +4,41 @@ import java.util.List;
 import java.util.Map;
 
 class LoxClass implements ILoxCallable {
+  private static final Symbol INIT = Symbol.intern("init");
+
   final String name;
-  private final Map<String, LoxFunction> methods;
-  private final Map<String, LoxField> fields;
+  private final Map<Symbol, LoxFunction> methods;
+  private final Map<Symbol, LoxField> fields;
+  // instance frame layout computed by Resolver
+  private final Map<Symbol, Integer> slots;
+  final int frameSize;
+  // captured when the class is declared and shared by the frames of all its instances
+  final Cell[] upvalues;
+  final Environment globals;
+  // field initializers compiled by ClosureCompiler, or null when the Interpreter walks them
+  final ClosureCompiler.Executor fieldCode;
+  // looked up once, since every call needs it
+  private final LoxFunction initializer;
+
+  LoxClass(String name, Map<Symbol, LoxField> fields, Map<Symbol, LoxFunction> methods, Map<Symbol, Integer> slots,
+      int frameSize, List<Upvalue> captures, Environment closure) {
+    this(name, fields, methods, slots, frameSize, captures, closure, null);
+  }
 
-  LoxClass(String name, Map<String, LoxField> fields, Map<String, LoxFunction> methods) {
+  LoxClass(String name, Map<Symbol, LoxField> fields, Map<Symbol, LoxFunction> methods, Map<Symbol, Integer> slots,
+      int frameSize, List<Upvalue> captures, Environment closure, ClosureCompiler.Executor fieldCode) {
     this.name = name;
     this.fields = fields;
     this.methods = methods;
+    this.slots = slots;
+    this.frameSize = frameSize;
+    this.upvalues = closure.capture(captures);
+    this.globals = closure.globals;
+    this.fieldCode = fieldCode;
+    this.initializer = findMethod(INIT);
   }
 
-  LoxFunction findMethod(String name) {
+  LoxFunction findMethod(Symbol name) {
     if (methods.containsKey(name)) {
       return methods.get(name);
     }
@@ -22,7 +46,7 @@ class LoxClass implements ILoxCallable {
     return null;
   }
 
-  LoxField findField(String name) {
+  LoxField findField(Symbol name) {
     if (fields.containsKey(name)) {
       return fields.get(name);
     }
@@ -30,29 +54,72 @@ class LoxClass implements ILoxCallable {
     return null;
   }
 
-  Map<String, LoxField> getFields() {
+  Integer findSlot(Symbol name) {
+    return slots.get(name);
+  }
+
+  Map<Symbol, LoxField> getFields() {
     return fields;
   }
 
-  Map<String, LoxFunction> getMethods() {
+  Map<Symbol, LoxFunction> getMethods() {
     return methods;
   }
 
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
     LoxInstance instance = new LoxInstance(this, interpreter);
-    LoxFunction initializer = findMethod("init");
     if (initializer != null) {
       initializer.bind(instance).call(interpreter, arguments);
     }
     return instance;
   }
 
+  @Override
+  public Object call0(Interpreter interpreter) {
+    LoxInstance instance = new LoxInstance(this, interpreter);
+    if (initializer != null) {
+      initializer.bind(instance).call0(interpreter);
+    }
+    return instance;
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    LoxInstance instance = new LoxInstance(this, interpreter);
+    if (initializer != null) {
+      initializer.bind(instance).call1(interpreter, a);
+    }
+    return instance;
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    LoxInstance instance = new LoxInstance(this, interpreter);
+    if (initializer != null) {
+      initializer.bind(instance).call2(interpreter, a, b);
+    }
+    return instance;
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    LoxInstance instance = new LoxInstance(this, interpreter);
+    if (initializer != null) {
+      initializer.bind(instance).call3(interpreter, a, b, c);
+    }
+    return instance;
+  }
+
   @Override
   public int arity() {
-    LoxFunction initializer = findMethod("init");
     if (initializer == null)
       return 0;
     return initializer.arity();
   }
+
+  @Override
+  public String toString() {
+    return name;
+  }
 }
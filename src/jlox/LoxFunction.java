@@ -1,27 +1,69 @@
 package jlox;
 
+import java.util.Arrays;
 import java.util.List;
 
 class LoxFunction implements ILoxCallable {
+  // returned by a body that left a tail call with the interpreter
+  static final Object TAIL_CALL = new Object();
+
   final Token name;
   final List<Stmt.FunctionParameter> params;
   final List<Stmt> body;
-  final Environment closure;
+  final int frameSize;
+  // how to capture upvalues, and the cells captured; the creating environment itself is not retained
+  private final List<Upvalue> captures;
+  private final Cell[] upvalues;
+  private final Environment globals;
+  private final LoxInstance instance;
   final boolean isInitializer;
   final Visibility visibility;
+  // body compiled by ClosureCompiler, or null when the Interpreter walks it
+  private final ClosureCompiler.Executor code;
+  // calls counted towards compiling the body to JVM bytecode, which stops once compilation has been tried
+  private int calls = 0;
+  private CompiledFunction compiled = null;
+
+  LoxFunction(Token name, List<Stmt.FunctionParameter> params, List<Stmt> body, int frameSize,
+      List<Upvalue> captures, Environment closure, boolean isInitializer, Visibility visibility) {
+    this(name, params, body, frameSize, captures, closure, null, isInitializer, visibility, null);
+  }
 
-  LoxFunction(Token name, List<Stmt.FunctionParameter> params, List<Stmt> body, Environment closure,
-      boolean isInitializer, Visibility visibility) {
+  LoxFunction(Token name, List<Stmt.FunctionParameter> params, List<Stmt> body, int frameSize,
+      List<Upvalue> captures, Environment closure, boolean isInitializer, Visibility visibility,
+      ClosureCompiler.Executor code) {
+    this(name, params, body, frameSize, captures, closure, null, isInitializer, visibility, code);
+  }
+
+  private LoxFunction(Token name, List<Stmt.FunctionParameter> params, List<Stmt> body, int frameSize,
+      List<Upvalue> captures, Environment closure, LoxInstance instance, boolean isInitializer,
+      Visibility visibility, ClosureCompiler.Executor code) {
     this.isInitializer = isInitializer;
-    this.closure = closure;
     this.name = name;
     this.params = params;
     this.body = body;
+    this.frameSize = frameSize;
+    this.captures = captures;
+    this.upvalues = closure != null ? closure.capture(captures) : null;
+    this.globals = closure != null ? closure.globals : null;
+    this.instance = instance;
     this.visibility = visibility;
+    this.code = code;
   }
 
   LoxFunction bind(LoxInstance instance) {
-    return new LoxFunction(name, params, body, instance.getEnvironment(), isInitializer, visibility);
+    return new LoxFunction(name, params, body, frameSize, captures, instance.getEnvironment(), instance,
+        isInitializer, visibility, code);
+  }
+
+  // Every read of a method off an instance yields a bound method of its own, so two reads are never the same function.
+  LoxFunction rebind() {
+    return instance != null ? bind(instance) : this;
+  }
+
+  // Anonymous functions are named by their 'fn' keyword.
+  boolean isAnonymous() {
+    return name.type == TokenType.FN;
   }
 
   @Override
@@ -31,30 +73,127 @@ class LoxFunction implements ILoxCallable {
 
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
-    Environment environment = new Environment(closure);
+    return trampoline(interpreter, invoke(interpreter, arguments));
+  }
+
+  // The fixed-arity entry points bind their arguments straight into the frame; compiled bodies still take a list.
+
+  @Override
+  public Object call0(Interpreter interpreter) {
+    if (compiled() != null)
+      return invokeCompiled(interpreter, Arrays.asList());
+
+    Environment environment = interpreter.pushFrame(this, globals, upvalues, frameSize);
+    return trampoline(interpreter, run(interpreter, environment));
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    if (compiled() != null)
+      return invokeCompiled(interpreter, Arrays.asList(a));
+
+    Environment environment = interpreter.pushFrame(this, globals, upvalues, frameSize);
+    bind(environment, 0, a);
+    return trampoline(interpreter, run(interpreter, environment));
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    if (compiled() != null)
+      return invokeCompiled(interpreter, Arrays.asList(a, b));
+
+    Environment environment = interpreter.pushFrame(this, globals, upvalues, frameSize);
+    bind(environment, 0, a);
+    bind(environment, 1, b);
+    return trampoline(interpreter, run(interpreter, environment));
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    if (compiled() != null)
+      return invokeCompiled(interpreter, Arrays.asList(a, b, c));
+
+    Environment environment = interpreter.pushFrame(this, globals, upvalues, frameSize);
+    bind(environment, 0, a);
+    bind(environment, 1, b);
+    bind(environment, 2, c);
+    return trampoline(interpreter, run(interpreter, environment));
+  }
+
+  // A body ending in a tail call returns before making it; the trampoline makes it here, in this Java frame.
+  private static Object trampoline(Interpreter interpreter, Object value) {
+    while (value == TAIL_CALL) {
+      value = interpreter.tailCallee().invoke(interpreter, interpreter.tailArguments());
+    }
+
+    return value;
+  }
+
+  // Runs the body once, returning its value or TAIL_CALL when it left a tail call with the interpreter.
+  private Object invoke(Interpreter interpreter, List<Object> arguments) {
+    if (compiled() != null)
+      return invokeCompiled(interpreter, arguments);
+
+    Environment environment = interpreter.pushFrame(this, globals, upvalues, frameSize);
 
     for (int i = 0; i < params.size(); i++) {
-      environment = environment.define(params.get(i).name.lexeme, arguments.get(i));
+      bind(environment, i, arguments.get(i));
+    }
+
+    return run(interpreter, environment);
+  }
+
+  // Counts a call towards compiling the body to JVM bytecode, returning the compiled body once there is one. Only
+  // bodies that need no closure state are compiled; initializers return their instance.
+  private CompiledFunction compiled() {
+    if (compiled == null && calls <= JvmCompiler.THRESHOLD && ++calls > JvmCompiler.THRESHOLD && captures.isEmpty()
+        && !isInitializer) {
+      compiled = JvmCompiler.compile(this, globals);
     }
 
+    return compiled;
+  }
+
+  // Parameters occupy the first slots of the frame.
+  private void bind(Environment environment, int slot, Object argument) {
+    environment.assignAt(slot, params.get(slot).isCaptured ? new Cell(argument) : argument);
+  }
+
+  // Runs the body in the frame pushed for it and pops the frame.
+  private Object run(Interpreter interpreter, Environment environment) {
+    Object value = null;
+
     try {
-      interpreter.executeBlock(body, environment);
-    } catch (Return returnValue) {
-      if (isInitializer) {
-        return closure.get(new Token(TokenType.IDENTIFIER, "this", null, -1));
-      }
+      Completion completion = code != null ? code.execute(environment) : interpreter.executeBlock(body, environment);
 
-      return returnValue.value;
+      if (completion == Completion.RETURN) {
+        value = interpreter.returnValue();
+      } else if (completion == Completion.TAIL_CALL) {
+        value = TAIL_CALL;
+      }
+    } finally {
+      interpreter.popFrame(frameSize);
     }
 
     if (isInitializer)
-      return closure.get(new Token(TokenType.IDENTIFIER, "this", null, -1));
+      return instance;
+
+    return value;
+  }
 
-    return null;
+  // Compiled code keeps its locals on the Java stack, but its calls still count towards the Lox call stack's depth.
+  private Object invokeCompiled(Interpreter interpreter, List<Object> arguments) {
+    interpreter.enter(this);
+
+    try {
+      return compiled.invoke(interpreter, arguments);
+    } finally {
+      interpreter.leave();
+    }
   }
 
   @Override
   public String toString() {
-    return "<fn " + name.lexeme + ">";
+    return isAnonymous() ? "<fn>" : "<fn " + name.lexeme + ">";
   }
 }
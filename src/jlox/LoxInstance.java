@@ -10,36 +10,50 @@ class LoxInstance {
   LoxInstance(LoxClass klass, Interpreter interpreter) {
     this.klass = klass;
 
-    // create mutable environment
-    env = new Environment(interpreter.getEnvironment(), true);
-    env.define("this", this);
+    // instance frame laid out by Resolver: 'this', methods, fields, each in a cell shared with the bound methods
+    env = new Environment(klass.globals, klass.upvalues, klass.frameSize);
 
-    klass.getMethods().entrySet().forEach(entry -> env.define(entry.getKey(), entry.getValue()));
+    // Every member cell exists before any method is bound, since methods capture each other's cells.
+    for (int i = 0; i < klass.frameSize; i++) {
+      env.assignAt(i, new Cell(null));
+    }
 
-    Environment prevEnv = interpreter.setEnvironment(env);
+    ((Cell) env.getAt(0)).value = this;
 
-    interpreter.interpret(
-        new ArrayList<Stmt>(klass.getFields().values().stream().map(field -> field.stmt).collect(Collectors.toList())));
+    klass.getMethods().entrySet()
+        .forEach(entry -> ((Cell) env.getAt(klass.findSlot(entry.getKey()))).value = entry.getValue().bind(this));
 
-    interpreter.setEnvironment(prevEnv);
+    if (klass.fieldCode != null) {
+      klass.fieldCode.execute(env);
+    } else {
+      interpreter.executeBlock(
+          new ArrayList<Stmt>(klass.getFields().values().stream().map(field -> field.stmt).collect(Collectors.toList())),
+          env);
+    }
   }
 
   Object get(Token name) {
-    if (env.has(name.lexeme)) {
-      Object property = env.get(name);
-
-      if (property instanceof LoxFunction) {
-        return ((LoxFunction) property).bind(this);
-      } else {
-        return property;
-      }
+    Integer slot = klass.findSlot(name.symbol);
+
+    if (slot != null) {
+      return ((Cell) env.getAt(slot)).value;
     }
 
     throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
   }
 
+  Object getAt(int slot) {
+    return ((Cell) env.getAt(slot)).value;
+  }
+
   void set(Token name, Object value) {
-    env.assign(name, value);
+    Integer slot = klass.findSlot(name.symbol);
+
+    if (slot == null) {
+      throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
+    ((Cell) env.getAt(slot)).value = value;
   }
 
   Environment getEnvironment() {
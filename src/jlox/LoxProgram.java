@@ -0,0 +1,50 @@
+package jlox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.List;
+
+// A script already scanned, parsed, resolved and fused by Jloxc. It is the entry point of the jars Jloxc writes, which
+// run it on the Interpreter straight away.
+class LoxProgram implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  static final String RESOURCE = "jlox/program.ser";
+  // A program is only tree nodes and the values in them, so reading it accepts nothing else.
+  private static final ObjectInputFilter FILTER =
+      ObjectInputFilter.Config.createFilter("jlox.*;java.util.*;java.lang.*;!*");
+
+  final List<Stmt> statements;
+  final int frameSize;
+
+  LoxProgram(List<Stmt> statements, int frameSize) {
+    this.statements = statements;
+    this.frameSize = frameSize;
+  }
+
+  public static void main(String[] args) throws IOException, ClassNotFoundException, InterruptedException {
+    LoxProgram program;
+
+    try (InputStream resource = LoxProgram.class.getClassLoader().getResourceAsStream(RESOURCE)) {
+      if (resource == null) {
+        System.err.println("No compiled program in the class path.");
+        System.exit(66);
+        return;
+      }
+
+      ObjectInputStream objects = new ObjectInputStream(resource);
+      objects.setObjectInputFilter(FILTER);
+      program = (LoxProgram) objects.readObject();
+    }
+
+    Lox.runWithStack(Interpreter.MAX_DEPTH,
+        () -> new Interpreter().interpret(program.statements, program.frameSize));
+
+    // Indicate an error in the exit code.
+    if (Lox.hadRuntimeError)
+      System.exit(70);
+  }
+}
@@ -0,0 +1,63 @@
+package jlox;
+
+// Instructions executed by VM. Each is one word in Chunk.code followed by its operand words; "slot" operands index the
+// frame, "constant" operands the chunk's constant pool.
+final class OpCode {
+  static final int CONSTANT = 0; // constant
+  static final int NIL = 1;
+  static final int TRUE = 2;
+  static final int FALSE = 3;
+  static final int POP = 4;
+
+  static final int GET_LOCAL = 5; // slot
+  static final int SET_LOCAL = 6; // slot
+  static final int DEFINE_LOCAL = 7; // slot
+  // locals captured by a closure hold a Cell
+  static final int GET_LOCAL_CELL = 8; // slot
+  static final int SET_LOCAL_CELL = 9; // slot
+  static final int DEFINE_LOCAL_CELL = 10; // slot
+  static final int INIT_LOCAL_CELL = 11; // slot
+  // gives a captured for loop variable a fresh cell for the next iteration
+  static final int REBIND_LOCAL_CELL = 12; // slot
+  static final int GET_UPVALUE = 13; // upvalue index
+  static final int SET_UPVALUE = 14; // upvalue index
+  static final int GET_GLOBAL = 15; // constant: Chunk.Global
+  static final int SET_GLOBAL = 16; // constant: Chunk.Global
+  static final int DEFINE_GLOBAL = 17; // constant: Chunk.Global
+  static final int INIT_GLOBAL = 18; // constant: Chunk.Global
+  // reading a method yields a new bound method, except where the value is only called
+  static final int GET_PROPERTY = 19; // constant: name token
+  static final int SET_PROPERTY = 20; // constant: name token
+
+  static final int EQUAL = 21;
+  static final int NOT_EQUAL = 22;
+  static final int GREATER = 23;
+  static final int GREATER_EQUAL = 24;
+  static final int LESS = 25;
+  static final int LESS_EQUAL = 26;
+  static final int ADD = 27;
+  static final int SUBTRACT = 28;
+  static final int MULTIPLY = 29;
+  static final int DIVIDE = 30;
+  static final int NOT = 31;
+  static final int NEGATE = 32;
+
+  // jump operands are absolute code offsets
+  static final int JUMP = 33; // offset
+  static final int JUMP_IF_FALSE = 34; // offset
+  static final int JUMP_IF_FALSE_KEEP = 35; // offset; leaves the condition on the stack
+  static final int JUMP_IF_TRUE_KEEP = 36; // offset; leaves the condition on the stack
+
+  static final int CALL = 37; // argument count
+  static final int CLOSURE = 38; // constant: VMFunction
+  static final int CLASS = 39; // constant: VMClass.Declaration
+  static final int RETURN = 40;
+  static final int RETURN_NIL = 41;
+  static final int RETURN_INSTANCE = 42;
+  // a call whose result the frame returns; a closure callee replaces the frame, anything else is called as by CALL
+  static final int TAIL_CALL = 43; // argument count
+  static final int GET_CALLEE = 44; // constant: name token
+
+  private OpCode() {
+  }
+}
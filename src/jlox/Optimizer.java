@@ -0,0 +1,500 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Hoists loop-invariant arithmetic into new frame slots and drops stores to locals nothing reads.
+class Optimizer implements Expr.IVisitor<Expr>, Stmt.IVisitor<Stmt> {
+  private enum Mode {
+    // records the local slots read and written, changing nothing
+    COLLECT,
+    // optimizes loops and nested functions and drops dead stores
+    OPTIMIZE,
+    // replaces the invariant expressions of the loop being optimized
+    HOIST
+  }
+
+  private static class Loop {
+    // local slots written anywhere in the loop
+    final BitSet written;
+    // slot of each hoisted expression, keyed by its structure
+    final Map<String, Integer> slots = new HashMap<>();
+    final List<Stmt> hoists = new ArrayList<>();
+
+    Loop(BitSet written) {
+      this.written = written;
+    }
+  }
+
+  private Mode mode = Mode.OPTIMIZE;
+  private BitSet reads = new BitSet();
+  private BitSet writes = new BitSet();
+  // local slots the current function reads anywhere
+  private BitSet functionReads = new BitSet();
+  private int frameSize = 0;
+  private Loop loop = null;
+
+  // Returns the frame size top-level code needs with the slots of its hoisted values.
+  int optimize(List<Stmt> statements, int frameSize) {
+    return function(statements, frameSize);
+  }
+
+  private int function(List<Stmt> body, int frameSize) {
+    Mode enclosingMode = mode;
+    BitSet enclosingReads = functionReads;
+    int enclosingFrameSize = this.frameSize;
+    Loop enclosingLoop = loop;
+
+    collect(body);
+    functionReads = reads;
+    this.frameSize = frameSize;
+    loop = null;
+    mode = Mode.OPTIMIZE;
+
+    optimize(body);
+    int size = this.frameSize;
+
+    mode = enclosingMode;
+    functionReads = enclosingReads;
+    this.frameSize = enclosingFrameSize;
+    loop = enclosingLoop;
+    return size;
+  }
+
+  private void optimize(List<Stmt> statements) {
+    for (int i = 0; i < statements.size(); i++) {
+      Stmt optimized = optimize(statements.get(i));
+
+      if (optimized == null) {
+        statements.remove(i--);
+      } else {
+        statements.set(i, optimized);
+      }
+    }
+  }
+
+  private void collect(List<Stmt> statements) {
+    Mode enclosing = mode;
+    mode = Mode.COLLECT;
+    reads = new BitSet();
+    writes = new BitSet();
+
+    for (Stmt statement : statements) {
+      optimize(statement);
+    }
+
+    mode = enclosing;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    optimize(stmt.statements);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    write(stmt.slot);
+
+    if (mode != Mode.OPTIMIZE)
+      return stmt;
+
+    for (Stmt.Var field : stmt.fields) {
+      optimize(field);
+    }
+
+    for (Stmt.Function method : stmt.methods) {
+      method.frameSize = function(method.body, method.frameSize);
+    }
+
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitContinueStmt(Stmt.Continue stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    stmt.expression = optimize(stmt.expression);
+
+    if (mode == Mode.OPTIMIZE && stmt.expression instanceof Expr.Assign) {
+      Expr.Assign assign = (Expr.Assign) stmt.expression;
+
+      if (isLocal(assign.binding) && !functionReads.get(assign.binding.slot) && isPure(assign.value))
+        return null;
+    }
+
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitForStmt(Stmt.For stmt) {
+    // An inner loop's initializer runs on every iteration.
+    if (mode != Mode.OPTIMIZE) {
+      if (stmt.initializer != null)
+        optimize(stmt.initializer);
+
+      loopParts(stmt);
+      return stmt;
+    }
+
+    BitSet written = loopWrites(stmt);
+
+    if (stmt.initializer != null)
+      optimize(stmt.initializer);
+
+    loopParts(stmt);
+    return hoist(stmt, written);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    write(stmt.slot);
+
+    if (mode == Mode.OPTIMIZE)
+      stmt.frameSize = function(stmt.body, stmt.frameSize);
+
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitFunctionParameter(Stmt.FunctionParameter stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value != null)
+      stmt.value = optimize(stmt.value);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    stmt.condition = optimize(stmt.condition);
+    stmt.thenBranch = branch(stmt.thenBranch);
+
+    if (stmt.elseBranch != null)
+      stmt.elseBranch = optimize(stmt.elseBranch);
+
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null)
+      stmt.initializer = optimize(stmt.initializer);
+
+    write(stmt.slot);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    if (mode != Mode.OPTIMIZE) {
+      stmt.condition = optimize(stmt.condition);
+      stmt.body = branch(stmt.body);
+      return stmt;
+    }
+
+    BitSet written = loopWrites(stmt);
+
+    stmt.condition = optimize(stmt.condition);
+    stmt.body = branch(stmt.body);
+    return hoist(stmt, written);
+  }
+
+  @Override
+  public Stmt visitHoistStmt(Stmt.Hoist stmt) {
+    write(stmt.slot);
+    return stmt;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    expr.value = optimize(expr.value);
+
+    if (expr.binding.upvalue < 0)
+      write(expr.binding.slot);
+
+    return expr;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    if (left == expr.left && right == expr.right)
+      return expr;
+
+    Expr.Binary optimized = new Expr.Binary(left, expr.operator, right);
+    optimized.isNumeric = expr.isNumeric;
+    return optimized;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    expr.callee = optimize(expr.callee);
+
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      expr.arguments.set(i, optimize(expr.arguments.get(i)));
+    }
+
+    return expr;
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    expr.object = optimize(expr.object);
+    return expr;
+  }
+
+  @Override
+  public Expr visitFunctionExpr(Expr.Function expr) {
+    if (mode == Mode.OPTIMIZE)
+      expr.frameSize = function(expr.body, expr.frameSize);
+
+    return expr;
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = optimize(expr.expression);
+
+    return expression == expr.expression ? expr : new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    if (left == expr.left && right == expr.right)
+      return expr;
+
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    expr.object = optimize(expr.object);
+    expr.value = optimize(expr.value);
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = optimize(expr.right);
+
+    return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    if (mode == Mode.COLLECT && isLocal(expr.binding))
+      reads.set(expr.binding.slot);
+
+    return expr;
+  }
+
+  // Fuser runs after optimization, so there are no fused nodes yet.
+
+  @Override
+  public Expr visitIncrementExpr(Expr.Increment expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitCompareExpr(Expr.Compare expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitFieldIncrementExpr(Expr.FieldIncrement expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitCallSumExpr(Expr.CallSum expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitInvariantExpr(Expr.Invariant expr) {
+    if (mode == Mode.COLLECT)
+      optimize(expr.original);
+
+    return expr;
+  }
+
+  // Inliner runs after optimization.
+
+  @Override
+  public Expr visitInlineExpr(Expr.Inline expr) {
+    return expr;
+  }
+
+  private Stmt optimize(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Expr optimize(Expr expr) {
+    if (mode == Mode.HOIST && isInvariant(expr) && !isLeaf(expr))
+      return hoisted(expr);
+
+    return expr.accept(this);
+  }
+
+  private Stmt branch(Stmt stmt) {
+    Stmt optimized = optimize(stmt);
+
+    return optimized != null ? optimized : new Stmt.Block(new ArrayList<>());
+  }
+
+  private void write(int slot) {
+    if (mode == Mode.COLLECT && slot >= 0)
+      writes.set(slot);
+  }
+
+  // The slots a loop writes, its initializer included, since hoisted values are computed before it.
+  private BitSet loopWrites(Stmt stmt) {
+    BitSet enclosingReads = reads;
+    BitSet enclosingWrites = writes;
+
+    List<Stmt> statements = new ArrayList<>();
+    statements.add(stmt);
+    collect(statements);
+
+    BitSet written = writes;
+    reads = enclosingReads;
+    writes = enclosingWrites;
+    return written;
+  }
+
+  private void loopParts(Stmt.For stmt) {
+    if (stmt.condition != null)
+      stmt.condition = optimize(stmt.condition);
+    if (stmt.increment != null)
+      stmt.increment = optimize(stmt.increment);
+
+    stmt.body = branch(stmt.body);
+  }
+
+  private Stmt hoist(Stmt stmt, BitSet written) {
+    Loop enclosing = loop;
+    loop = new Loop(written);
+    mode = Mode.HOIST;
+
+    if (stmt instanceof Stmt.For) {
+      loopParts((Stmt.For) stmt);
+    } else {
+      visitWhileStmt((Stmt.While) stmt);
+    }
+
+    mode = Mode.OPTIMIZE;
+    List<Stmt> hoists = loop.hoists;
+    loop = enclosing;
+
+    if (hoists.isEmpty())
+      return stmt;
+
+    hoists.add(stmt);
+    return new Stmt.Block(hoists);
+  }
+
+  // Equal hoisted expressions share a slot.
+  private Expr hoisted(Expr expr) {
+    String key = key(expr);
+    Integer slot = loop.slots.get(key);
+
+    if (slot == null) {
+      slot = frameSize++;
+      loop.slots.put(key, slot);
+      loop.hoists.add(new Stmt.Hoist(slot, expr));
+    }
+
+    return new Expr.Invariant(expr, slot);
+  }
+
+  // Whether an expression is numeric arithmetic over literals and locals the loop never writes.
+  private boolean isInvariant(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      return binary.isNumeric && isInvariant(binary.left) && isInvariant(binary.right);
+    }
+
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      return unary.operator.type == TokenType.MINUS && isInvariant(unary.right);
+    }
+
+    if (expr instanceof Expr.Grouping)
+      return isInvariant(((Expr.Grouping) expr).expression);
+
+    if (expr instanceof Expr.Literal)
+      return ((Expr.Literal) expr).value instanceof Double;
+
+    if (expr instanceof Expr.Variable) {
+      Binding binding = ((Expr.Variable) expr).binding;
+      return isLocal(binding) && !loop.written.get(binding.slot);
+    }
+
+    return false;
+  }
+
+  private boolean isLeaf(Expr expr) {
+    while (expr instanceof Expr.Grouping) {
+      expr = ((Expr.Grouping) expr).expression;
+    }
+
+    return expr instanceof Expr.Literal || expr instanceof Expr.Variable;
+  }
+
+  private String key(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      return "(" + binary.operator.lexeme + " " + key(binary.left) + " " + key(binary.right) + ")";
+    }
+
+    if (expr instanceof Expr.Unary)
+      return "(- " + key(((Expr.Unary) expr).right) + ")";
+
+    if (expr instanceof Expr.Grouping)
+      return key(((Expr.Grouping) expr).expression);
+
+    if (expr instanceof Expr.Literal)
+      return ((Expr.Literal) expr).value.toString();
+
+    return "$" + ((Expr.Variable) expr).binding.slot;
+  }
+
+  private boolean isLocal(Binding binding) {
+    return binding.slot >= 0 && binding.upvalue < 0 && !binding.isCaptured && !binding.isConstant;
+  }
+
+  // Whether evaluating an expression can neither fail nor have an effect.
+  private boolean isPure(Expr expr) {
+    return expr instanceof Expr.Literal || expr instanceof Expr.Variable && isLocal(((Expr.Variable) expr).binding);
+  }
+}
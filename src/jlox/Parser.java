@@ -1,7 +1,6 @@
 package jlox;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static jlox.TokenType.*;
@@ -34,7 +33,7 @@ class Parser {
     try {
       if (match(CLASS))
         return classDeclaration();
-      if (match(VAR))
+      if (match(VAR, CONST))
         return varDeclaration(Visibility.UNSPECIFIED, false);
       if (match(FN))
         return functionStatement("function", Visibility.UNSPECIFIED, false);
@@ -159,20 +158,7 @@ class Parser {
 
     Stmt body = statement();
 
-    if (increment != null) {
-      body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
-    }
-
-    if (condition == null)
-      condition = new Expr.Literal(true);
-
-    body = new Stmt.While(condition, body);
-
-    if (initializer != null) {
-      body = new Stmt.Block(Arrays.asList(initializer, body));
-    }
-
-    return body;
+    return new Stmt.For(initializer, condition, increment, body);
   }
 
   private Stmt ifStatement() {
@@ -201,15 +187,19 @@ class Parser {
   }
 
   private Stmt.Var varDeclaration(Visibility visibility, boolean isClassMember) {
+    boolean isConst = previous().type == CONST;
     Token name = consume(IDENTIFIER, "Expect variable name.");
 
     Expr initializer = null;
-    if (match(EQUAL)) {
+    if (isConst) {
+      consume(EQUAL, "Expect '=' after constant name.");
+      initializer = expression();
+    } else if (match(EQUAL)) {
       initializer = expression();
     }
 
     consume(SEMICOLON, "Expect ';' after variable declaration.");
-    return new Stmt.Var(name, initializer, visibility, isClassMember);
+    return new Stmt.Var(name, initializer, visibility, isClassMember, isConst);
   }
 
   private Stmt whileStatement() {
@@ -259,7 +249,8 @@ class Parser {
   }
 
   private Expr.Function functionExpression() {
-    Token name = null;
+    // An anonymous function goes by its 'fn' keyword, which calls and stack traces point at.
+    Token name = previous();
 
     if (match(IDENTIFIER)) {
       name = previous();
@@ -507,6 +498,7 @@ class Parser {
 
       switch (peek().type) {
         case CLASS:
+        case CONST:
         case FN:
         case VAR:
         case FOR:
@@ -0,0 +1,246 @@
+package jlox;
+
+import java.util.function.BiConsumer;
+
+// An immutable hash array mapped trie; assoc() shares every untouched node with the old map instead of copying it.
+final class PersistentMap<K, V> {
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+
+  private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(BitmapNode.EMPTY, 0);
+
+  private final Node root;
+  private final int size;
+
+  private PersistentMap(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <K, V> PersistentMap<K, V> empty() {
+    return (PersistentMap<K, V>) EMPTY;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean containsKey(K key) {
+    return root.find(0, key.hashCode(), key, Node.NOT_FOUND) != Node.NOT_FOUND;
+  }
+
+  @SuppressWarnings("unchecked")
+  V getOrDefault(K key, V defaultValue) {
+    Object value = root.find(0, key.hashCode(), key, Node.NOT_FOUND);
+
+    return value == Node.NOT_FOUND ? defaultValue : (V) value;
+  }
+
+  PersistentMap<K, V> assoc(K key, V value) {
+    boolean[] addedLeaf = new boolean[1];
+    Node newRoot = root.assoc(0, key.hashCode(), key, value, addedLeaf);
+
+    if (newRoot == root)
+      return this;
+
+    return new PersistentMap<>(newRoot, addedLeaf[0] ? size + 1 : size);
+  }
+
+  @SuppressWarnings("unchecked")
+  void forEach(BiConsumer<K, V> action) {
+    root.forEach((key, value) -> action.accept((K) key, (V) value));
+  }
+
+  private static int bitFor(int hash, int shift) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+  private static Object[] cloneAndSet(Object[] array, int i, Object value) {
+    Object[] clone = array.clone();
+    clone[i] = value;
+    return clone;
+  }
+
+  private static Node createNode(int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+    int hash1 = key1.hashCode();
+
+    if (hash1 == hash2) {
+      return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+    }
+
+    boolean[] addedLeaf = new boolean[1];
+
+    return BitmapNode.EMPTY.assoc(shift, hash1, key1, value1, addedLeaf).assoc(shift, hash2, key2, value2, addedLeaf);
+  }
+
+  private abstract static class Node {
+    static final Object NOT_FOUND = new Object();
+
+    abstract Object find(int shift, int hash, Object key, Object notFound);
+
+    abstract Node assoc(int shift, int hash, Object key, Object value, boolean[] addedLeaf);
+
+    abstract void forEach(BiConsumer<Object, Object> action);
+  }
+
+  // Entries are stored as key/value pairs; a null key marks a value slot holding a child node.
+  private static final class BitmapNode extends Node {
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    private final int bitmap;
+    private final Object[] array;
+
+    BitmapNode(int bitmap, Object[] array) {
+      this.bitmap = bitmap;
+      this.array = array;
+    }
+
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key, Object notFound) {
+      int bit = bitFor(hash, shift);
+
+      if ((bitmap & bit) == 0)
+        return notFound;
+
+      int idx = index(bit);
+      Object keyOrNull = array[2 * idx];
+      Object valueOrNode = array[2 * idx + 1];
+
+      if (keyOrNull == null)
+        return ((Node) valueOrNode).find(shift + BITS, hash, key, notFound);
+
+      if (key.equals(keyOrNull))
+        return valueOrNode;
+
+      return notFound;
+    }
+
+    @Override
+    Node assoc(int shift, int hash, Object key, Object value, boolean[] addedLeaf) {
+      int bit = bitFor(hash, shift);
+      int idx = index(bit);
+
+      if ((bitmap & bit) != 0) {
+        Object keyOrNull = array[2 * idx];
+        Object valueOrNode = array[2 * idx + 1];
+
+        if (keyOrNull == null) {
+          Node node = ((Node) valueOrNode).assoc(shift + BITS, hash, key, value, addedLeaf);
+
+          if (node == valueOrNode)
+            return this;
+
+          return new BitmapNode(bitmap, cloneAndSet(array, 2 * idx + 1, node));
+        }
+
+        if (key.equals(keyOrNull)) {
+          if (value == valueOrNode)
+            return this;
+
+          return new BitmapNode(bitmap, cloneAndSet(array, 2 * idx + 1, value));
+        }
+
+        addedLeaf[0] = true;
+
+        Object[] newArray = array.clone();
+        newArray[2 * idx] = null;
+        newArray[2 * idx + 1] = createNode(shift + BITS, keyOrNull, valueOrNode, hash, key, value);
+
+        return new BitmapNode(bitmap, newArray);
+      }
+
+      int count = Integer.bitCount(bitmap);
+      Object[] newArray = new Object[2 * (count + 1)];
+
+      System.arraycopy(array, 0, newArray, 0, 2 * idx);
+      newArray[2 * idx] = key;
+      newArray[2 * idx + 1] = value;
+      System.arraycopy(array, 2 * idx, newArray, 2 * (idx + 1), 2 * (count - idx));
+
+      addedLeaf[0] = true;
+
+      return new BitmapNode(bitmap | bit, newArray);
+    }
+
+    @Override
+    void forEach(BiConsumer<Object, Object> action) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (array[i] == null) {
+          ((Node) array[i + 1]).forEach(action);
+        } else {
+          action.accept(array[i], array[i + 1]);
+        }
+      }
+    }
+  }
+
+  // Keys whose full 32-bit hashes are equal.
+  private static final class CollisionNode extends Node {
+    private final int hash;
+    private final Object[] array;
+
+    CollisionNode(int hash, Object[] array) {
+      this.hash = hash;
+      this.array = array;
+    }
+
+    private int indexOf(Object key) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i]))
+          return i;
+      }
+
+      return -1;
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key, Object notFound) {
+      int idx = indexOf(key);
+
+      if (idx < 0)
+        return notFound;
+
+      return array[idx + 1];
+    }
+
+    @Override
+    Node assoc(int shift, int hash, Object key, Object value, boolean[] addedLeaf) {
+      if (hash == this.hash) {
+        int idx = indexOf(key);
+
+        if (idx >= 0) {
+          if (array[idx + 1] == value)
+            return this;
+
+          return new CollisionNode(hash, cloneAndSet(array, idx + 1, value));
+        }
+
+        Object[] newArray = new Object[array.length + 2];
+
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        newArray[array.length] = key;
+        newArray[array.length + 1] = value;
+
+        addedLeaf[0] = true;
+
+        return new CollisionNode(hash, newArray);
+      }
+
+      // Different hash: push this node one level down under a bitmap node.
+      return new BitmapNode(bitFor(this.hash, shift), new Object[] { null, this }).assoc(shift, hash, key, value,
+          addedLeaf);
+    }
+
+    @Override
+    void forEach(BiConsumer<Object, Object> action) {
+      for (int i = 0; i < array.length; i += 2) {
+        action.accept(array[i], array[i + 1]);
+      }
+    }
+  }
+}
@@ -23,11 +23,24 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
     IDeclarator declarator;
     List<Expr> refs;
     VariableState state;
+    // index of the declaring scope in the scope stack and the frame slot within it
+    int scopeIndex;
+    int slot;
+    // local accesses to patch once we know whether a closure captures the variable
+    List<Binding> bindings;
+    boolean isCaptured;
+    // literal value of a const declaration, known at resolve time
+    boolean isConstant;
+    Object constant;
 
     Declaration(VariableState state, IDeclarator declarator, Boolean isReferenced) {
       this.state = state;
       this.declarator = declarator;
       this.refs = new ArrayList<>();
+      this.scopeIndex = scopes.size() - 1;
+      this.slot = scopeIndex == 0 ? -1 : currentState.allocateSlot();
+      this.bindings = new ArrayList<>();
+      this.isCaptured = currentState != null && currentState.isClass;
     }
 
     Token getDeclaratorName() {
@@ -35,33 +48,86 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
     }
   }
 
+  // A function (or class) body whose frames are created together; anything declared outside it is reached through
+  // upvalues.
+  private class FunctionState {
+    final FunctionState enclosing;
+    // index in the scope stack of the outermost scope belonging to this function
+    final int scopeBase;
+    // class members are shared with every bound method, so they are always captured
+    final boolean isClass;
+    final List<Upvalue> upvalues = new ArrayList<>();
+    final Map<Declaration, Integer> upvalueIndices = new HashMap<>();
+    // declarations of nested blocks are hoisted into the function's frame
+    int nextSlot = 0;
+    int frameSize = 0;
+
+    FunctionState(FunctionState enclosing, int scopeBase, boolean isClass) {
+      this.enclosing = enclosing;
+      this.scopeBase = scopeBase;
+      this.isClass = isClass;
+    }
+
+    int allocateSlot() {
+      frameSize = Math.max(frameSize, nextSlot + 1);
+      return nextSlot++;
+    }
+  }
+
+  private static final Object NOT_CONSTANT = new Object();
+
   private final Stack<Map<String, Declaration>> scopes = new Stack<>();
   private FunctionType currentFunction = FunctionType.NONE;
   private ClassType currentClass = ClassType.NONE;
+  private FunctionState currentState = null;
   private boolean isInsideLoop = false;
 
-  void resolve(List<Stmt> statements) {
+  // Returns the frame size top-level code needs for the locals of its blocks.
+  int resolve(List<Stmt> statements) {
+    // The top-level scope is global; top-level code owns the scopes of its blocks.
+    FunctionState state = new FunctionState(null, 1, false);
+    currentState = state;
+
     beginScope();
     for (Stmt statement : statements) {
       resolve(statement);
     }
     endScope();
+
+    currentState = null;
+    return state.frameSize;
   }
 
-  private void _resolveFunction(List<Stmt.FunctionParameter> params, List<Stmt> body) {
+  // The body is a scope of its own inside that of the parameters, so it may redeclare them; both live in the one
+  // frame LoxFunction.call creates.
+  private FunctionState _resolveFunction(List<Stmt.FunctionParameter> params, List<Stmt> body) {
+    FunctionState enclosingState = currentState;
+    FunctionState state = new FunctionState(enclosingState, scopes.size(), false);
+    currentState = state;
+
     beginScope();
     for (Stmt.FunctionParameter param : params) {
       resolve(param);
     }
-    resolve(body);
+
+    beginScope();
+    for (Stmt statement : body) {
+      resolve(statement);
+    }
     endScope();
+    endScope();
+
+    currentState = enclosingState;
+    return state;
   }
 
   private void resolveFunction(Stmt.Function function, FunctionType type) {
     FunctionType enclosingFunction = currentFunction;
     currentFunction = type;
 
-    _resolveFunction(function.params, function.body);
+    FunctionState state = _resolveFunction(function.params, function.body);
+    function.frameSize = state.frameSize;
+    function.upvalues = state.upvalues;
 
     currentFunction = enclosingFunction;
   }
@@ -70,7 +136,9 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
     FunctionType enclosingFunction = currentFunction;
     currentFunction = FunctionType.FUNCTION;
 
-    _resolveFunction(function.params, function.body);
+    FunctionState state = _resolveFunction(function.params, function.body);
+    function.frameSize = state.frameSize;
+    function.upvalues = state.upvalues;
 
     currentFunction = enclosingFunction;
   }
@@ -78,7 +146,9 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
     beginScope();
-    resolve(stmt.statements);
+    for (Stmt statement : stmt.statements) {
+      resolve(statement);
+    }
     endScope();
     return null;
   }
@@ -91,16 +161,22 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
     declare(stmt);
     define(stmt);
 
+    FunctionState enclosingState = currentState;
+    FunctionState state = new FunctionState(enclosingState, scopes.size(), true);
+    currentState = state;
+
+    // The class scope becomes the instance frame: 'this' in slot 0, then methods and fields.
     beginScope();
     scopes.peek().put("this", new Declaration(VariableState.DEFINED, null, false));
 
-    stmt.fields.forEach(field -> visitVarStmt(field));
-
+    // Methods are bound before any field initializer runs, so initializers can refer to them.
     stmt.methods.forEach(method -> {
       declare(method);
       define(method);
     });
 
+    stmt.fields.forEach(field -> visitVarStmt(field));
+
     stmt.methods.forEach(method -> {
       FunctionType declaration = FunctionType.METHOD;
 
@@ -112,7 +188,10 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
     });
 
     endScope();
+    stmt.frameSize = state.frameSize;
+    stmt.upvalues = state.upvalues;
 
+    currentState = enclosingState;
     currentClass = enclosingClass;
     return null;
   }
@@ -132,6 +211,33 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    beginScope();
+
+    if (stmt.initializer != null)
+      resolve(stmt.initializer);
+    if (stmt.condition != null)
+      resolve(stmt.condition);
+    if (stmt.increment != null)
+      resolve(stmt.increment);
+
+    boolean originalIsInLoop = isInsideLoop;
+    isInsideLoop = true;
+
+    resolve(stmt.body);
+
+    isInsideLoop = originalIsInLoop;
+
+    endScope();
+
+    if (stmt.initializer instanceof Stmt.Var && ((Stmt.Var) stmt.initializer).isCaptured) {
+      stmt.capturedSlot = ((Stmt.Var) stmt.initializer).slot;
+    }
+
+    return null;
+  }
+
   @Override
   public Void visitIfStmt(Stmt.If stmt) {
     resolve(stmt.condition);
@@ -154,6 +260,12 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitHoistStmt(Stmt.Hoist stmt) {
+    resolve(stmt.value);
+    return null;
+  }
+
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
     if (currentFunction == FunctionType.NONE) {
@@ -166,6 +278,9 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
       }
 
       resolve(stmt.value);
+
+      // An initializer returns its instance rather than the value of the call.
+      stmt.isTailCall = stmt.value instanceof Expr.Call && currentFunction != FunctionType.INITIALIZER;
     }
 
     return null;
@@ -178,6 +293,17 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
       resolve(stmt.initializer);
     }
     define(stmt);
+
+    if (stmt.isConst) {
+      Declaration declaration = scopes.peek().get(stmt.name.lexeme);
+      Object value = constantValue(stmt.initializer);
+
+      if (value != NOT_CONSTANT) {
+        declaration.isConstant = true;
+        declaration.constant = value;
+      }
+    }
+
     return null;
   }
 
@@ -202,7 +328,14 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value);
-    resolveLocal(expr, expr.name);
+
+    Declaration declaration = resolveBinding(expr, expr.name, expr.binding);
+
+    if (declaration != null && declaration.declarator instanceof Stmt.Var
+        && ((Stmt.Var) declaration.declarator).isConst) {
+      Lox.error(expr.name, "Cannot assign to a constant.");
+    }
+
     return null;
   }
 
@@ -210,6 +343,21 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
   public Void visitBinaryExpr(Expr.Binary expr) {
     resolve(expr.left);
     resolve(expr.right);
+
+    switch (expr.operator.type) {
+      case MINUS:
+      case SLASH:
+      case STAR:
+        expr.isNumeric = true;
+        break;
+      case PLUS:
+        // With a numeric operand, '+' either adds two numbers or fails.
+        expr.isNumeric = isNumeric(expr.left) || isNumeric(expr.right);
+        break;
+      default:
+        break;
+    }
+
     return null;
   }
 
@@ -263,7 +411,7 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
       return null;
     }
 
-    resolveLocal(expr, expr.keyword);
+    resolveBinding(expr, expr.keyword, expr.binding);
     return null;
   }
 
@@ -280,7 +428,46 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
       Lox.error(expr.name, "Cannot read local variable in its own initializer.");
     }
 
-    resolveLocal(expr, expr.name);
+    resolveBinding(expr, expr.name, expr.binding);
+    return null;
+  }
+
+  // Fuser only runs after resolution; fused nodes resolve as the nodes they replace.
+  @Override
+  public Void visitIncrementExpr(Expr.Increment expr) {
+    resolve(expr.original);
+    return null;
+  }
+
+  @Override
+  public Void visitCompareExpr(Expr.Compare expr) {
+    resolve(expr.original);
+    return null;
+  }
+
+  @Override
+  public Void visitFieldIncrementExpr(Expr.FieldIncrement expr) {
+    resolve(expr.original);
+    return null;
+  }
+
+  @Override
+  public Void visitCallSumExpr(Expr.CallSum expr) {
+    resolve(expr.original);
+    return null;
+  }
+
+  // Optimizer also runs after resolution.
+
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    resolve(expr.original);
+    return null;
+  }
+
+  @Override
+  public Void visitInlineExpr(Expr.Inline expr) {
+    resolve(expr.original);
     return null;
   }
 
@@ -313,6 +500,14 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
     Map<String, Declaration> scope = scopes.pop();
 
     scope.forEach((key, declaration) -> {
+      if (declaration.isCaptured) {
+        declaration.bindings.forEach(binding -> binding.isCaptured = true);
+
+        if (declaration.declarator != null) {
+          declaration.declarator.setCaptured(true);
+        }
+      }
+
       String kind = "";
 
       if (declaration.declarator instanceof Stmt.Function) {
@@ -357,6 +552,10 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
         Lox.error(declName, "Unused " + kind + ".");
       }
     });
+
+    // Slots of a finished block can be reused by the blocks that follow it.
+    scope.values().stream().mapToInt(declaration -> declaration.slot).filter(slot -> slot >= 0).min()
+        .ifPresent(slot -> currentState.nextSlot = slot);
   }
 
   private void declare(IDeclarator decl) {
@@ -369,23 +568,125 @@ class Resolver implements Expr.IVisitor<Void>, Stmt.IVisitor<Void> {
       Lox.error(decl.getName(), "Variable with this name already declared in this scope.");
     }
 
-    scope.put(decl.getName().lexeme, new Declaration(VariableState.DECLARED, decl, false));
+    Declaration declaration = new Declaration(VariableState.DECLARED, decl, false);
+
+    scope.put(decl.getName().lexeme, declaration);
+    decl.setSlot(isGlobal(declaration) ? -1 : declaration.slot);
   }
 
   private void define(IDeclarator decl) {
     if (scopes.isEmpty())
       return;
 
-    scopes.peek().put(decl.getName().lexeme, new Declaration(VariableState.DEFINED, decl, false));
+    Declaration declaration = scopes.peek().get(decl.getName().lexeme);
+
+    if (declaration == null) {
+      declaration = new Declaration(VariableState.DEFINED, decl, false);
+      scopes.peek().put(decl.getName().lexeme, declaration);
+      decl.setSlot(isGlobal(declaration) ? -1 : declaration.slot);
+    }
+
+    declaration.state = VariableState.DEFINED;
   }
 
-  private void resolveLocal(Expr expr, Token name) {
+  private Declaration resolveLocal(Expr expr, Token name) {
     for (int i = scopes.size() - 1; i >= 0; i--) {
       if (scopes.get(i).containsKey(name.lexeme)) {
-        scopes.get(i).get(name.lexeme).refs.add(expr);
+        Declaration declaration = scopes.get(i).get(name.lexeme);
+        declaration.refs.add(expr);
 
-        return;
+        return declaration;
       }
     }
+
+    return null;
+  }
+
+  // Top-level declarations live in the name-keyed global environment, not in a slot.
+  private boolean isGlobal(Declaration declaration) {
+    return declaration == null || declaration.scopeIndex == 0;
+  }
+
+  private Declaration resolveBinding(Expr expr, Token name, Binding binding) {
+    Declaration declaration = resolveLocal(expr, name);
+
+    // Constants are substituted, so closures reading them need not capture anything.
+    if (declaration != null && declaration.isConstant) {
+      binding.isConstant = true;
+      binding.constant = declaration.constant;
+      return declaration;
+    }
+
+    if (isGlobal(declaration))
+      return declaration;
+
+    if (declaration.scopeIndex >= currentState.scopeBase) {
+      binding.slot = declaration.slot;
+      declaration.bindings.add(binding);
+    } else {
+      binding.upvalue = resolveUpvalue(currentState, declaration);
+    }
+
+    return declaration;
+  }
+
+  // Value of an expression built only from literals and other constants, or NOT_CONSTANT.
+  private Object constantValue(Expr expr) {
+    if (expr instanceof Expr.Literal) {
+      return ((Expr.Literal) expr).value;
+    }
+
+    if (expr instanceof Expr.Grouping) {
+      return constantValue(((Expr.Grouping) expr).expression);
+    }
+
+    if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.MINUS) {
+      Object value = constantValue(((Expr.Unary) expr).right);
+
+      return value instanceof Double ? -(double) value : NOT_CONSTANT;
+    }
+
+    if (expr instanceof Expr.Variable && ((Expr.Variable) expr).binding.isConstant) {
+      return ((Expr.Variable) expr).binding.constant;
+    }
+
+    return NOT_CONSTANT;
+  }
+
+  private boolean isNumeric(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      return ((Expr.Binary) expr).isNumeric;
+    }
+
+    if (expr instanceof Expr.Unary) {
+      return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+    }
+
+    if (expr instanceof Expr.Grouping) {
+      return isNumeric(((Expr.Grouping) expr).expression);
+    }
+
+    return constantValue(expr) instanceof Double;
+  }
+
+  private int resolveUpvalue(FunctionState state, Declaration declaration) {
+    Integer index = state.upvalueIndices.get(declaration);
+
+    if (index != null)
+      return index;
+
+    Upvalue upvalue;
+
+    if (declaration.scopeIndex >= state.enclosing.scopeBase) {
+      declaration.isCaptured = true;
+      upvalue = new Upvalue(true, declaration.slot);
+    } else {
+      upvalue = new Upvalue(false, resolveUpvalue(state.enclosing, declaration));
+    }
+
+    state.upvalues.add(upvalue);
+    state.upvalueIndices.put(declaration, state.upvalues.size() - 1);
+
+    return state.upvalues.size() - 1;
   }
 }
@@ -1,7 +1,11 @@
 package jlox;
 
+import java.util.List;
+
 class RuntimeError extends RuntimeException {
   final Token token;
+  // the Lox call stack when the error was raised, innermost call first, for errors reported with one
+  List<String> trace = null;
 
   RuntimeError(Token token, String message) {
     super(message);
@@ -13,29 +13,30 @@ class Scanner {
   private int start = 0;
   private int current = 0;
   private int line = 1;
-  private static final Map<String, TokenType> keywords;
+  private static final Map<Symbol, TokenType> keywords;
 
   static {
     keywords = new HashMap<>();
-    keywords.put("and", AND);
-    keywords.put("break", BREAK);
-    keywords.put("class", CLASS);
-    keywords.put("continue", CONTINUE);
-    keywords.put("else", ELSE);
-    keywords.put("false", FALSE);
-    keywords.put("for", FOR);
-    keywords.put("fn", FN);
-    keywords.put("if", IF);
-    keywords.put("nil", NIL);
-    keywords.put("or", OR);
-    keywords.put("private", PRIVATE);
-    keywords.put("public", PUBLIC);
-    keywords.put("return", RETURN);
-    keywords.put("super", SUPER);
-    keywords.put("this", THIS);
-    keywords.put("true", TRUE);
-    keywords.put("var", VAR);
-    keywords.put("while", WHILE);
+    keywords.put(Symbol.intern("and"), AND);
+    keywords.put(Symbol.intern("break"), BREAK);
+    keywords.put(Symbol.intern("class"), CLASS);
+    keywords.put(Symbol.intern("const"), CONST);
+    keywords.put(Symbol.intern("continue"), CONTINUE);
+    keywords.put(Symbol.intern("else"), ELSE);
+    keywords.put(Symbol.intern("false"), FALSE);
+    keywords.put(Symbol.intern("for"), FOR);
+    keywords.put(Symbol.intern("fn"), FN);
+    keywords.put(Symbol.intern("if"), IF);
+    keywords.put(Symbol.intern("nil"), NIL);
+    keywords.put(Symbol.intern("or"), OR);
+    keywords.put(Symbol.intern("private"), PRIVATE);
+    keywords.put(Symbol.intern("public"), PUBLIC);
+    keywords.put(Symbol.intern("return"), RETURN);
+    keywords.put(Symbol.intern("super"), SUPER);
+    keywords.put(Symbol.intern("this"), THIS);
+    keywords.put(Symbol.intern("true"), TRUE);
+    keywords.put(Symbol.intern("var"), VAR);
+    keywords.put(Symbol.intern("while"), WHILE);
   }
 
   Scanner(String source) {
@@ -167,13 +168,13 @@ class Scanner {
     while (isAlphaNumeric(peek()))
       advance();
 
-    // See if the identifier is a reserved word.
-    String text = source.substring(start, current);
+    Symbol symbol = Symbol.intern(source, start, current);
 
-    TokenType type = keywords.get(text);
+    // See if the identifier is a reserved word.
+    TokenType type = keywords.get(symbol);
     if (type == null)
       type = IDENTIFIER;
-    addToken(type);
+    tokens.add(new Token(type, symbol.name, null, line, symbol));
   }
 
   private void number() {
@@ -1,8 +1,26 @@
 package jlox;
 
+import java.io.Serializable;
 import java.util.List;
 
-abstract class Stmt {
+abstract sealed class Stmt implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // Dense kind tags, one per node class, for dispatching with a switch instead of a visitor.
+  static final int BLOCK = 0;
+  static final int CLASS = 1;
+  static final int BREAK = 2;
+  static final int CONTINUE = 3;
+  static final int EXPRESSION = 4;
+  static final int FOR = 5;
+  static final int FUNCTION = 6;
+  static final int RETURN = 7;
+  static final int IF = 8;
+  static final int VAR = 9;
+  static final int WHILE = 10;
+  static final int FUNCTION_PARAMETER = 11;
+  static final int HOIST = 12;
+
   interface IVisitor<R> {
     R visitBlockStmt(Block stmt);
 
@@ -14,6 +32,8 @@ abstract class Stmt {
 
     R visitExpressionStmt(Expression stmt);
 
+    R visitForStmt(For stmt);
+
     R visitFunctionStmt(Function stmt);
 
     R visitFunctionParameter(FunctionParameter stmt);
@@ -25,10 +45,15 @@ abstract class Stmt {
     R visitVarStmt(Var stmt);
 
     R visitWhileStmt(While stmt);
+
+    R visitHoistStmt(Hoist stmt);
   }
 
-  static class Block extends Stmt {
+  static final class Block extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     Block(List<Stmt> statements) {
+      super(BLOCK);
       this.statements = statements;
     }
 
@@ -40,8 +65,11 @@ abstract class Stmt {
     final List<Stmt> statements;
   }
 
-  static class Class extends Stmt implements IDeclarator {
+  static final class Class extends Stmt implements IDeclarator {
+    private static final long serialVersionUID = 1L;
+
     Class(Token name, List<Stmt.Var> fields, List<Stmt.Function> methods) {
+      super(CLASS);
       this.name = name;
       this.fields = fields;
       this.methods = methods;
@@ -55,6 +83,10 @@ abstract class Stmt {
     final Token name;
     final List<Stmt.Var> fields;
     final List<Stmt.Function> methods;
+    int slot = -1;
+    boolean isCaptured = false;
+    int frameSize = 0;
+    List<Upvalue> upvalues;
 
     @Override
     public Token getName() {
@@ -65,10 +97,33 @@ abstract class Stmt {
     public Visibility getVisibility() {
       return Visibility.UNSPECIFIED;
     }
+
+    @Override
+    public int getSlot() {
+      return slot;
+    }
+
+    @Override
+    public void setSlot(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    public boolean isCaptured() {
+      return isCaptured;
+    }
+
+    @Override
+    public void setCaptured(boolean isCaptured) {
+      this.isCaptured = isCaptured;
+    }
   }
 
-  static class Break extends Stmt {
+  static final class Break extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     Break(Token keyword) {
+      super(BREAK);
       this.keyword = keyword;
     }
 
@@ -80,8 +135,11 @@ abstract class Stmt {
     final Token keyword;
   }
 
-  static class Continue extends Stmt {
+  static final class Continue extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     Continue(Token keyword) {
+      super(CONTINUE);
       this.keyword = keyword;
     }
 
@@ -93,8 +151,11 @@ abstract class Stmt {
     final Token keyword;
   }
 
-  static class Expression extends Stmt {
+  static final class Expression extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     Expression(Expr expression) {
+      super(EXPRESSION);
       this.expression = expression;
     }
 
@@ -103,12 +164,44 @@ abstract class Stmt {
       return visitor.visitExpressionStmt(this);
     }
 
-    final Expr expression;
+    // replaced by ConstantFolder with its folded value and by Fuser with a fused node
+    Expr expression;
   }
 
-  static class Function extends Stmt implements IDeclarator {
+  static final class For extends Stmt {
+    private static final long serialVersionUID = 1L;
+
+    For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      super(FOR);
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(IVisitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+
+    final Stmt initializer;
+    // condition and increment are replaced by ConstantFolder and Fuser, the body by ConstantFolder
+    Expr condition;
+    Expr increment;
+    Stmt body;
+    // slot of a loop variable captured by a closure, rebound on every iteration
+    int capturedSlot = -1;
+    // iterations run by the Interpreter, counted towards moving the loop to compiled code
+    int backEdges = 0;
+    transient CompiledLoop compiled = null;
+  }
+
+  static final class Function extends Stmt implements IDeclarator {
+    private static final long serialVersionUID = 1L;
+
     Function(Token name, List<FunctionParameter> params, List<Stmt> body, Visibility visibility,
         boolean isClassMember) {
+      super(FUNCTION);
       this.name = name;
       this.params = params;
       this.body = body;
@@ -126,6 +219,10 @@ abstract class Stmt {
     final List<Stmt> body;
     final Visibility visibility;
     final boolean isClassMember;
+    int slot = -1;
+    boolean isCaptured = false;
+    int frameSize = 0;
+    List<Upvalue> upvalues;
 
     @Override
     public Token getName() {
@@ -136,10 +233,33 @@ abstract class Stmt {
     public Visibility getVisibility() {
       return Visibility.UNSPECIFIED;
     }
+
+    @Override
+    public int getSlot() {
+      return slot;
+    }
+
+    @Override
+    public void setSlot(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    public boolean isCaptured() {
+      return isCaptured;
+    }
+
+    @Override
+    public void setCaptured(boolean isCaptured) {
+      this.isCaptured = isCaptured;
+    }
   }
 
-  static class Return extends Stmt {
+  static final class Return extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     Return(Token keyword, Expr value) {
+      super(RETURN);
       this.keyword = keyword;
       this.value = value;
     }
@@ -150,11 +270,17 @@ abstract class Stmt {
     }
 
     final Token keyword;
-    final Expr value;
+    // replaced by ConstantFolder with its folded value and by Fuser with a fused node
+    Expr value;
+    // set by Resolver when the value is a call whose result the function returns as it is
+    boolean isTailCall;
   }
 
-  static class If extends Stmt {
+  static final class If extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+      super(IF);
       this.condition = condition;
       this.thenBranch = thenBranch;
       this.elseBranch = elseBranch;
@@ -165,17 +291,22 @@ abstract class Stmt {
       return visitor.visitIfStmt(this);
     }
 
-    final Expr condition;
-    final Stmt thenBranch;
-    final Stmt elseBranch;
+    // condition and branches are replaced by ConstantFolder, the condition also by Fuser
+    Expr condition;
+    Stmt thenBranch;
+    Stmt elseBranch;
   }
 
-  static class Var extends Stmt implements IDeclarator {
-    Var(Token name, Expr initializer, Visibility visibility, boolean isClassMember) {
+  static final class Var extends Stmt implements IDeclarator {
+    private static final long serialVersionUID = 1L;
+
+    Var(Token name, Expr initializer, Visibility visibility, boolean isClassMember, boolean isConst) {
+      super(VAR);
       this.name = name;
       this.initializer = initializer;
       this.visibility = visibility;
       this.isClassMember = isClassMember;
+      this.isConst = isConst;
     }
 
     @Override
@@ -184,9 +315,13 @@ abstract class Stmt {
     }
 
     final Token name;
-    final Expr initializer;
+    // replaced by ConstantFolder with its folded value
+    Expr initializer;
     final Visibility visibility;
     final boolean isClassMember;
+    final boolean isConst;
+    int slot = -1;
+    boolean isCaptured = false;
 
     @Override
     public Token getName() {
@@ -197,10 +332,33 @@ abstract class Stmt {
     public Visibility getVisibility() {
       return visibility;
     }
+
+    @Override
+    public int getSlot() {
+      return slot;
+    }
+
+    @Override
+    public void setSlot(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    public boolean isCaptured() {
+      return isCaptured;
+    }
+
+    @Override
+    public void setCaptured(boolean isCaptured) {
+      this.isCaptured = isCaptured;
+    }
   }
 
-  static class While extends Stmt {
+  static final class While extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     While(Expr condition, Stmt body) {
+      super(WHILE);
       this.condition = condition;
       this.body = body;
     }
@@ -210,12 +368,19 @@ abstract class Stmt {
       return visitor.visitWhileStmt(this);
     }
 
-    final Expr condition;
-    final Stmt body;
+    // condition and body are replaced by ConstantFolder, the condition also by Fuser
+    Expr condition;
+    Stmt body;
+    // iterations run by the Interpreter, counted towards moving the loop to compiled code
+    int backEdges = 0;
+    transient CompiledLoop compiled = null;
   }
 
-  static class FunctionParameter extends Stmt implements IDeclarator {
+  static final class FunctionParameter extends Stmt implements IDeclarator {
+    private static final long serialVersionUID = 1L;
+
     FunctionParameter(Token name, Expr initializer) {
+      super(FUNCTION_PARAMETER);
       this.name = name;
       this.initializer = initializer;
     }
@@ -226,7 +391,10 @@ abstract class Stmt {
     }
 
     final Token name;
-    final Expr initializer;
+    // replaced by ConstantFolder with its folded value
+    Expr initializer;
+    int slot = -1;
+    boolean isCaptured = false;
 
     @Override
     public Token getName() {
@@ -237,6 +405,52 @@ abstract class Stmt {
     public Visibility getVisibility() {
       return Visibility.UNSPECIFIED;
     }
+
+    @Override
+    public int getSlot() {
+      return slot;
+    }
+
+    @Override
+    public void setSlot(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    public boolean isCaptured() {
+      return isCaptured;
+    }
+
+    @Override
+    public void setCaptured(boolean isCaptured) {
+      this.isCaptured = isCaptured;
+    }
+  }
+
+  // Computes loop-invariant expressions into the slots of their Expr.Invariant uses ahead of a loop; inserted by
+  // Optimizer.
+  static final class Hoist extends Stmt {
+    private static final long serialVersionUID = 1L;
+
+    Hoist(int slot, Expr value) {
+      super(HOIST);
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(IVisitor<R> visitor) {
+      return visitor.visitHoistStmt(this);
+    }
+
+    final int slot;
+    final Expr value;
+  }
+
+  final int kind;
+
+  Stmt(int kind) {
+    this.kind = kind;
   }
 
   abstract <R> R accept(IVisitor<R> visitor);
@@ -0,0 +1,92 @@
+package jlox;
+
+import java.io.Serializable;
+
+// An interned identifier: each name has one Symbol, compared by identity and hashed by its id.
+final class Symbol implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private static Symbol[] table = new Symbol[256];
+  private static int count = 0;
+
+  final String name;
+  final int id;
+  private final int hash;
+
+  private Symbol(String name, int id, int hash) {
+    this.name = name;
+    this.id = id;
+    this.hash = hash;
+  }
+
+  static Symbol intern(String name) {
+    return intern(name, 0, name.length());
+  }
+
+  // Looks the identifier up in place, so scanning a known name does not copy it out of the source.
+  static Symbol intern(String source, int start, int end) {
+    int length = end - start;
+    int hash = 0;
+
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + source.charAt(i);
+    }
+
+    int mask = table.length - 1;
+    int index = hash & mask;
+
+    while (table[index] != null) {
+      Symbol symbol = table[index];
+
+      if (symbol.hash == hash && symbol.name.length() == length && symbol.name.regionMatches(0, source, start, length)) {
+        return symbol;
+      }
+
+      index = (index + 1) & mask;
+    }
+
+    Symbol symbol = new Symbol(source.substring(start, end), count++, hash);
+    table[index] = symbol;
+
+    if (count * 2 > table.length) {
+      grow();
+    }
+
+    return symbol;
+  }
+
+  private static void grow() {
+    Symbol[] old = table;
+    table = new Symbol[old.length * 2];
+
+    int mask = table.length - 1;
+
+    for (Symbol symbol : old) {
+      if (symbol == null)
+        continue;
+
+      int index = symbol.hash & mask;
+
+      while (table[index] != null) {
+        index = (index + 1) & mask;
+      }
+
+      table[index] = symbol;
+    }
+  }
+
+  // Ids are dense per run, so a deserialized symbol is interned again by name.
+  private Object readResolve() {
+    return intern(name);
+  }
+
+  @Override
+  public int hashCode() {
+    return id;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -1,16 +1,27 @@
 package jlox;
 
-class Token {
+import java.io.Serializable;
+
+class Token implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   final TokenType type;
   final String lexeme;
   final Object literal;
   final int line;
+  // interned name of identifiers and keywords
+  final Symbol symbol;
 
   Token(TokenType type, String lexeme, Object literal, int line) {
+    this(type, lexeme, literal, line, null);
+  }
+
+  Token(TokenType type, String lexeme, Object literal, int line, Symbol symbol) {
     this.type = type;
     this.lexeme = lexeme;
     this.literal = literal;
     this.line = line;
+    this.symbol = symbol;
   }
 
   public String toString() {
@@ -11,7 +11,7 @@ enum TokenType {
   IDENTIFIER, STRING, NUMBER,
 
   // Keywords.
-  AND, BREAK, CLASS, CONTINUE, ELSE, FALSE, FN, FOR, IF, NIL, OR, PRIVATE, PUBLIC, RETURN, SUPER, THIS, TRUE, VAR,
+  AND, BREAK, CLASS, CONST, CONTINUE, ELSE, FALSE, FN, FOR, IF, NIL, OR, PRIVATE, PUBLIC, RETURN, SUPER, THIS, TRUE, VAR,
   WHILE,
 
   EOF
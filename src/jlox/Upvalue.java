@@ -0,0 +1,17 @@
+package jlox;
+
+import java.io.Serializable;
+
+// How a closure captures one variable when it is created: the cell in a frame slot of the creating code, or one of the
+// creating closure's own upvalues.
+class Upvalue implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  final boolean isLocal;
+  final int index;
+
+  Upvalue(boolean isLocal, int index) {
+    this.isLocal = isLocal;
+    this.index = index;
+  }
+}
@@ -0,0 +1,521 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Stack machine running the bytecode emitted by Compiler. Frames are windows on one value stack: the callee, then the
+// slots Resolver laid out (parameters first), then the operand stack.
+class VM {
+  private static class CallFrame {
+    VMClosure closure;
+    int[] code;
+    Token[] tokens;
+    Object[] constants;
+    int ip;
+    int base;
+    // snapshot of the global scope; top-level code advances it as it declares globals
+    Environment globals;
+    // the instance whose field initializers this frame runs; returning goes on to its initializer
+    VMInstance constructing;
+    // the call that pushed the frame, null for the script's
+    Token callSite;
+  }
+
+  // natives are shared with the tree-walking interpreter, which they receive on every call
+  private final Interpreter interpreter;
+  private final int maxDepth;
+  private Environment globals;
+  private Object[] stack = new Object[256];
+  private int sp = 0;
+  private CallFrame[] frames = new CallFrame[64];
+  private int frameCount = 0;
+
+  VM(Interpreter interpreter, int maxDepth) {
+    this.interpreter = interpreter;
+    this.maxDepth = maxDepth;
+    this.globals = interpreter.getGlobals();
+  }
+
+  void interpret(VMFunction script) {
+    VMClosure closure = new VMClosure(script, null, globals, null);
+
+    try {
+      push(closure);
+      call(closure, 0, null);
+      run();
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    } finally {
+      globals = frames[0].globals;
+      Arrays.fill(stack, 0, stack.length, null);
+      sp = 0;
+      frameCount = 0;
+    }
+  }
+
+  // Runs until the script's frame returns. Calls push a frame and carry on in this loop, class instantiations included.
+  private void run() {
+    CallFrame frame = frames[frameCount - 1];
+    int[] code = frame.code;
+    Token[] tokens = frame.tokens;
+    Object[] constants = frame.constants;
+    int ip = frame.ip;
+    int base = frame.base;
+    // cached in locals; synced with the fields around calls, which may grow the stack
+    Object[] stack = this.stack;
+    int sp = this.sp;
+
+    for (;;) {
+      int start = ip;
+
+      switch (code[ip++]) {
+        case OpCode.CONSTANT:
+          stack[sp++] = constants[code[ip++]];
+          break;
+        case OpCode.NIL:
+          stack[sp++] = null;
+          break;
+        case OpCode.TRUE:
+          stack[sp++] = true;
+          break;
+        case OpCode.FALSE:
+          stack[sp++] = false;
+          break;
+        case OpCode.POP:
+          sp--;
+          break;
+
+        case OpCode.GET_LOCAL:
+          stack[sp++] = stack[base + code[ip++]];
+          break;
+        case OpCode.SET_LOCAL:
+          stack[base + code[ip++]] = stack[sp - 1];
+          break;
+        case OpCode.DEFINE_LOCAL:
+          stack[base + code[ip++]] = stack[--sp];
+          break;
+        case OpCode.GET_LOCAL_CELL:
+          stack[sp++] = ((Cell) stack[base + code[ip++]]).value;
+          break;
+        case OpCode.SET_LOCAL_CELL:
+          ((Cell) stack[base + code[ip++]]).value = stack[sp - 1];
+          break;
+        case OpCode.DEFINE_LOCAL_CELL:
+          stack[base + code[ip++]] = new Cell(stack[--sp]);
+          break;
+        case OpCode.INIT_LOCAL_CELL:
+          ((Cell) stack[base + code[ip++]]).value = stack[--sp];
+          break;
+        case OpCode.REBIND_LOCAL_CELL: {
+          int slot = base + code[ip++];
+          stack[slot] = new Cell(((Cell) stack[slot]).value);
+          break;
+        }
+        case OpCode.GET_UPVALUE:
+          stack[sp++] = frame.closure.upvalues[code[ip++]].value;
+          break;
+        case OpCode.SET_UPVALUE:
+          frame.closure.upvalues[code[ip++]].value = stack[sp - 1];
+          break;
+        case OpCode.GET_GLOBAL:
+          stack[sp++] = globalCell(frame, (Chunk.Global) constants[code[ip++]]).value;
+          break;
+        case OpCode.SET_GLOBAL:
+          globalCell(frame, (Chunk.Global) constants[code[ip++]]).value = stack[sp - 1];
+          break;
+        case OpCode.DEFINE_GLOBAL:
+          frame.globals = frame.globals.define(((Chunk.Global) constants[code[ip++]]).name.symbol, stack[--sp]);
+          break;
+        case OpCode.INIT_GLOBAL:
+          frame.globals.assign(((Chunk.Global) constants[code[ip++]]).name, stack[--sp]);
+          break;
+        case OpCode.GET_PROPERTY: {
+          Object value = getProperty(stack[sp - 1], (Token) constants[code[ip++]]);
+
+          // Every read of a method yields a bound method of its own.
+          if (value instanceof VMClosure && ((VMClosure) value).instance != null) {
+            VMClosure method = (VMClosure) value;
+            value = new VMClosure(method.function, method.upvalues, method.globals, method.instance);
+          }
+
+          stack[sp - 1] = value;
+          break;
+        }
+        case OpCode.GET_CALLEE:
+          stack[sp - 1] = getProperty(stack[sp - 1], (Token) constants[code[ip++]]);
+          break;
+        case OpCode.SET_PROPERTY: {
+          Object value = stack[--sp];
+          setProperty(stack[sp - 1], (Token) constants[code[ip++]], value);
+          stack[sp - 1] = value;
+          break;
+        }
+
+        case OpCode.EQUAL: {
+          Object right = stack[--sp];
+          stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], right);
+          break;
+        }
+        case OpCode.NOT_EQUAL: {
+          Object right = stack[--sp];
+          stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], right);
+          break;
+        }
+        case OpCode.GREATER:
+          stack[sp - 2] = number(stack[sp - 2], tokens[start]) > number(stack[sp - 1], tokens[start]);
+          sp--;
+          break;
+        case OpCode.GREATER_EQUAL:
+          stack[sp - 2] = number(stack[sp - 2], tokens[start]) >= number(stack[sp - 1], tokens[start]);
+          sp--;
+          break;
+        case OpCode.LESS:
+          stack[sp - 2] = number(stack[sp - 2], tokens[start]) < number(stack[sp - 1], tokens[start]);
+          sp--;
+          break;
+        case OpCode.LESS_EQUAL:
+          stack[sp - 2] = number(stack[sp - 2], tokens[start]) <= number(stack[sp - 1], tokens[start]);
+          sp--;
+          break;
+        case OpCode.ADD: {
+          Object left = stack[sp - 2];
+          Object right = stack[sp - 1];
+
+          if (left instanceof Double && right instanceof Double) {
+            stack[sp - 2] = (double) left + (double) right;
+          } else if (left instanceof String && right instanceof String) {
+            stack[sp - 2] = (String) left + (String) right;
+          } else {
+            throw new RuntimeError(tokens[start], Interpreter.ADD_OPERANDS);
+          }
+
+          sp--;
+          break;
+        }
+        case OpCode.SUBTRACT:
+          stack[sp - 2] = number(stack[sp - 2], tokens[start]) - number(stack[sp - 1], tokens[start]);
+          sp--;
+          break;
+        case OpCode.MULTIPLY:
+          stack[sp - 2] = number(stack[sp - 2], tokens[start]) * number(stack[sp - 1], tokens[start]);
+          sp--;
+          break;
+        case OpCode.DIVIDE:
+          stack[sp - 2] = number(stack[sp - 2], tokens[start]) / number(stack[sp - 1], tokens[start]);
+          sp--;
+          break;
+        case OpCode.NOT:
+          stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+          break;
+        case OpCode.NEGATE:
+          if (!(stack[sp - 1] instanceof Double))
+            throw new RuntimeError(tokens[start], Interpreter.NUMBER_OPERAND);
+          stack[sp - 1] = -(double) stack[sp - 1];
+          break;
+
+        case OpCode.JUMP:
+          ip = code[ip];
+          break;
+        case OpCode.JUMP_IF_FALSE:
+          ip = Interpreter.isTruthy(stack[--sp]) ? ip + 1 : code[ip];
+          break;
+        case OpCode.JUMP_IF_FALSE_KEEP:
+          ip = Interpreter.isTruthy(stack[sp - 1]) ? ip + 1 : code[ip];
+          break;
+        case OpCode.JUMP_IF_TRUE_KEEP:
+          ip = Interpreter.isTruthy(stack[sp - 1]) ? code[ip] : ip + 1;
+          break;
+
+        case OpCode.CALL:
+        case OpCode.TAIL_CALL: {
+          int argCount = code[ip++];
+          Object callee = stack[sp - argCount - 1];
+          frame.ip = ip;
+
+          // The callee and arguments move down over the returning frame, whose slot the new frame then takes.
+          if (code[start] == OpCode.TAIL_CALL && callee instanceof VMClosure) {
+            System.arraycopy(stack, sp - argCount - 1, stack, base - 1, argCount + 1);
+            Arrays.fill(stack, base + argCount, sp, null);
+            sp = base + argCount;
+            frameCount--;
+          }
+
+          this.sp = sp;
+
+          if (callee instanceof VMClosure) {
+            call((VMClosure) callee, argCount, tokens[start]);
+          } else {
+            callValue(callee, argCount, tokens[start]);
+          }
+
+          stack = this.stack;
+          sp = this.sp;
+          frame = frames[frameCount - 1];
+          code = frame.code;
+          tokens = frame.tokens;
+          constants = frame.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case OpCode.CLOSURE: {
+          VMFunction function = (VMFunction) constants[code[ip++]];
+          stack[sp++] = new VMClosure(function, capture(stack, frame, function.upvalues), frame.globals, null);
+          break;
+        }
+        case OpCode.CLASS: {
+          VMClass.Declaration declaration = (VMClass.Declaration) constants[code[ip++]];
+          stack[sp++] = new VMClass(declaration, capture(stack, frame, declaration.upvalues), frame.globals);
+          break;
+        }
+        case OpCode.RETURN:
+        case OpCode.RETURN_NIL:
+        case OpCode.RETURN_INSTANCE: {
+          int op = code[start];
+          Object result = op == OpCode.RETURN ? stack[--sp] : op == OpCode.RETURN_NIL ? null : frame.closure.instance;
+          VMInstance constructing = frame.constructing;
+
+          // Clear the frame, the callee below it included, so it does not keep values alive.
+          Arrays.fill(stack, base - 1, sp, null);
+          sp = base - 1;
+          frameCount--;
+
+          if (constructing != null) {
+            this.sp = sp;
+            initialize(constructing);
+            stack = this.stack;
+            sp = this.sp;
+          } else {
+            stack[sp++] = result;
+          }
+
+          if (frameCount == 0) {
+            this.sp = sp;
+            return;
+          }
+
+          frame = frames[frameCount - 1];
+          code = frame.code;
+          tokens = frame.tokens;
+          constants = frame.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+      }
+    }
+  }
+
+  private void push(Object value) {
+    stack[sp++] = value;
+  }
+
+  private static double number(Object value, Token operator) {
+    if (value instanceof Double)
+      return (double) value;
+
+    throw new RuntimeError(operator, Interpreter.NUMBER_OPERANDS);
+  }
+
+  // Globals resolve to a cell once per snapshot version; redefinition creates a new version.
+  private Cell globalCell(CallFrame frame, Chunk.Global global) {
+    if (global.version != frame.globals.version) {
+      global.cell = frame.globals.cellFor(global.name);
+      global.version = frame.globals.version;
+    }
+
+    return global.cell;
+  }
+
+  private static Cell[] capture(Object[] stack, CallFrame frame, Upvalue[] captures) {
+    Cell[] cells = new Cell[captures.length];
+
+    for (int i = 0; i < cells.length; i++) {
+      Upvalue upvalue = captures[i];
+      cells[i] = upvalue.isLocal ? (Cell) stack[frame.base + upvalue.index] : frame.closure.upvalues[upvalue.index];
+    }
+
+    return cells;
+  }
+
+  // Pushes a frame for the closure whose callee and arguments are on top of the stack.
+  private void call(VMClosure closure, int argCount, Token paren) {
+    VMFunction function = closure.function;
+
+    if (argCount != function.arity) {
+      throw new RuntimeError(paren, "Expected " + function.arity + " arguments but got " + argCount + ".");
+    }
+
+    // The script's frame does not count towards the depth.
+    if (frameCount > maxDepth) {
+      RuntimeError error = new RuntimeError(paren, "Stack overflow.");
+      error.trace = stackTrace(paren);
+      throw error;
+    }
+
+    if (frameCount == frames.length) {
+      frames = Arrays.copyOf(frames, frameCount * 2);
+    }
+
+    int base = sp - argCount;
+
+    if (base + function.frameSize + function.chunk.maxStack > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + function.frameSize + function.chunk.maxStack));
+    }
+
+    for (int slot : function.capturedParams) {
+      stack[base + slot] = new Cell(stack[base + slot]);
+    }
+
+    CallFrame frame = frames[frameCount];
+
+    if (frame == null) {
+      frame = new CallFrame();
+      frames[frameCount] = frame;
+    }
+
+    frame.closure = closure;
+    frame.code = function.chunk.code;
+    frame.tokens = function.chunk.tokens;
+    frame.constants = function.chunk.constants;
+    frame.ip = 0;
+    frame.base = base;
+    frame.globals = closure.globals;
+    frame.constructing = null;
+    frame.callSite = paren;
+
+    frameCount++;
+    sp = base + function.frameSize;
+  }
+
+  private void callValue(Object callee, int argCount, Token paren) {
+    if (callee instanceof VMClass) {
+      VMClass klass = (VMClass) callee;
+
+      if (argCount != klass.arity()) {
+        throw new RuntimeError(paren, "Expected " + klass.arity() + " arguments but got " + argCount + ".");
+      }
+
+      instantiate(klass, paren);
+      return;
+    }
+
+    if (callee instanceof ILoxCallable) {
+      ILoxCallable function = (ILoxCallable) callee;
+
+      if (argCount != function.arity()) {
+        throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got " + argCount + ".");
+      }
+
+      Object result = call(function, argCount);
+
+      Arrays.fill(stack, sp - argCount, sp, null);
+      sp -= argCount;
+      stack[sp - 1] = result;
+      return;
+    }
+
+    throw new RuntimeError(paren, "Can only call functions, methods and classes.");
+  }
+
+  // Calls a callable shared with the Interpreter with the arguments on top of the stack, through its fixed-arity entry
+  // points when there are up to three.
+  private Object call(ILoxCallable function, int argCount) {
+    switch (argCount) {
+      case 0:
+        return function.call0(interpreter);
+      case 1:
+        return function.call1(interpreter, stack[sp - 1]);
+      case 2:
+        return function.call2(interpreter, stack[sp - 2], stack[sp - 1]);
+      case 3:
+        return function.call3(interpreter, stack[sp - 3], stack[sp - 2], stack[sp - 1]);
+      default:
+        return function.call(interpreter, new ArrayList<>(Arrays.asList(stack).subList(sp - argCount, sp)));
+    }
+  }
+
+  // The Lox call stack, innermost call first, in the form Interpreter reports it.
+  private List<String> stackTrace(Token at) {
+    List<String> trace = new ArrayList<>(frameCount);
+
+    for (int i = frameCount - 1; i >= 0; i--) {
+      Token name = frames[i].closure.function.name;
+
+      trace.add("[line " + at.line + "] in "
+          + (name == null ? "script" : (name.type == TokenType.FN ? "fn" : name.lexeme) + "()"));
+      at = frames[i].callSite;
+    }
+
+    return trace;
+  }
+
+  // Pushes a frame running the field initializers in the new instance's frame, passed as its arguments above the
+  // class and the arguments to its initializer.
+  private void instantiate(VMClass klass, Token paren) {
+    VMInstance instance = new VMInstance(klass);
+
+    if (sp + instance.cells.length + 1 > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + instance.cells.length + 1));
+    }
+
+    push(klass.fields);
+    for (Cell cell : instance.cells) {
+      push(cell);
+    }
+
+    call(klass.fields, instance.cells.length, paren);
+    frames[frameCount - 1].constructing = instance;
+  }
+
+  // Once its fields are set, the instance replaces the class on the stack, or is handed to the initializer with the
+  // arguments the class was called with. Their number was checked when the class was called.
+  private void initialize(VMInstance instance) {
+    VMClass klass = instance.klass;
+
+    if (klass.initializer != null) {
+      VMClosure initializer = (VMClosure) instance.cells[klass.findSlot(klass.initializer.name.symbol)].value;
+
+      stack[sp - klass.arity() - 1] = initializer;
+      call(initializer, klass.arity(), null);
+    } else {
+      stack[sp - 1] = instance;
+    }
+  }
+
+  private Object getProperty(Object object, Token name) {
+    if (!(object instanceof VMInstance)) {
+      throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    VMInstance instance = (VMInstance) object;
+
+    if (instance.klass.declaration.privateMembers.contains(name.symbol)) {
+      throw new RuntimeError(name,
+          "Property '" + name.lexeme + "' is private and only accessible within class '" + instance.klass.name + "'.");
+    }
+
+    return instance.cells[slotOf(instance, name)].value;
+  }
+
+  private void setProperty(Object object, Token name, Object value) {
+    if (!(object instanceof VMInstance)) {
+      throw new RuntimeError(name, "Only instances have fields.");
+    }
+
+    VMInstance instance = (VMInstance) object;
+    instance.cells[slotOf(instance, name)].value = value;
+  }
+
+  private int slotOf(VMInstance instance, Token name) {
+    Integer slot = instance.klass.findSlot(name.symbol);
+
+    if (slot == null) {
+      throw new RuntimeError(name,
+          "Property '" + name.lexeme + "' does not exist on type '" + instance.klass.name + "'.");
+    }
+
+    return slot;
+  }
+}
@@ -0,0 +1,63 @@
+package jlox;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class VMClass {
+  // A class as compiled: the instance frame layout and the code of its members. CLASS turns it into a VMClass.
+  static class Declaration {
+    final Token name;
+    // instance frame layout computed by Resolver: 'this', methods, fields
+    final Map<Symbol, Integer> slots;
+    final Set<Symbol> privateMembers;
+    final Map<Symbol, VMFunction> methods;
+    // runs the field initializers in an instance frame passed as its arguments
+    final VMFunction fields;
+    final int frameSize;
+    final Upvalue[] upvalues;
+
+    Declaration(Token name, Map<Symbol, Integer> slots, Set<Symbol> privateMembers, Map<Symbol, VMFunction> methods,
+        VMFunction fields, int frameSize, List<Upvalue> upvalues) {
+      this.name = name;
+      this.slots = slots;
+      this.privateMembers = privateMembers;
+      this.methods = methods;
+      this.fields = fields;
+      this.frameSize = frameSize;
+      this.upvalues = upvalues.toArray(new Upvalue[0]);
+    }
+  }
+
+  private static final Symbol INIT = Symbol.intern("init");
+
+  final Declaration declaration;
+  final String name;
+  // captured when the class is declared and shared by the frames of all its instances
+  final Cell[] upvalues;
+  final Environment globals;
+  final VMClosure fields;
+  final VMFunction initializer;
+
+  VMClass(Declaration declaration, Cell[] upvalues, Environment globals) {
+    this.declaration = declaration;
+    this.name = declaration.name.lexeme;
+    this.upvalues = upvalues;
+    this.globals = globals;
+    this.fields = new VMClosure(declaration.fields, upvalues, globals, null);
+    this.initializer = declaration.methods.get(INIT);
+  }
+
+  int arity() {
+    return initializer == null ? 0 : initializer.arity;
+  }
+
+  Integer findSlot(Symbol name) {
+    return declaration.slots.get(name);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
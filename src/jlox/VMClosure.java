@@ -0,0 +1,21 @@
+package jlox;
+
+class VMClosure {
+  final VMFunction function;
+  final Cell[] upvalues;
+  final Environment globals;
+  // instance a method is bound to, returned by initializers
+  final VMInstance instance;
+
+  VMClosure(VMFunction function, Cell[] upvalues, Environment globals, VMInstance instance) {
+    this.function = function;
+    this.upvalues = upvalues;
+    this.globals = globals;
+    this.instance = instance;
+  }
+
+  @Override
+  public String toString() {
+    return function.toString();
+  }
+}
@@ -0,0 +1,31 @@
+package jlox;
+
+import java.util.List;
+
+// A function compiled by Compiler. CLOSURE instantiates it as a VMClosure.
+class VMFunction {
+  final Token name;
+  final int arity;
+  final int frameSize;
+  final Upvalue[] upvalues;
+  // parameters some closure captures, to be boxed in cells on entry
+  final int[] capturedParams;
+  final Chunk chunk;
+
+  VMFunction(Token name, int arity, int frameSize, List<Upvalue> upvalues, int[] capturedParams, Chunk chunk) {
+    this.name = name;
+    this.arity = arity;
+    this.frameSize = frameSize;
+    this.upvalues = upvalues.toArray(new Upvalue[0]);
+    this.capturedParams = capturedParams;
+    this.chunk = chunk;
+  }
+
+  @Override
+  public String toString() {
+    if (name == null)
+      return "<script>";
+    // anonymous functions are named by their 'fn' keyword, as in LoxFunction
+    return name.type == TokenType.FN ? "<fn>" : "<fn " + name.lexeme + ">";
+  }
+}
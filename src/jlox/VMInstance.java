@@ -0,0 +1,38 @@
+package jlox;
+
+import java.util.Map;
+
+class VMInstance {
+  final VMClass klass;
+  // the instance frame; every member is captured by the bound methods, so each slot is a cell
+  final Cell[] cells;
+
+  VMInstance(VMClass klass) {
+    this.klass = klass;
+    this.cells = new Cell[klass.declaration.frameSize];
+
+    // Every member cell exists before any method is bound, since methods capture each other's cells.
+    for (int i = 0; i < cells.length; i++) {
+      cells[i] = new Cell(null);
+    }
+
+    cells[0].value = this;
+
+    for (Map.Entry<Symbol, VMFunction> entry : klass.declaration.methods.entrySet()) {
+      VMFunction method = entry.getValue();
+      Cell[] upvalues = new Cell[method.upvalues.length];
+
+      for (int i = 0; i < upvalues.length; i++) {
+        Upvalue upvalue = method.upvalues[i];
+        upvalues[i] = upvalue.isLocal ? cells[upvalue.index] : klass.upvalues[upvalue.index];
+      }
+
+      cells[klass.findSlot(entry.getKey())].value = new VMClosure(method, upvalues, klass.globals, this);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return klass.name + " instance";
+  }
+}